@@ -0,0 +1,254 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Evaluates a flat BM25 #SUM, Indri #AND or Indri #WAND query with
+ *  Block-Max WAND dynamic pruning.  Only the top k documents are
+ *  printed, so a document whose score can't reach the k'th best score
+ *  seen so far (the threshold) needn't be scored at all.
+ *  <p>
+ *  The inverted list of each argument is divided into blocks of
+ *  InvList.BLOCK_SIZE postings that know their largest tf and their
+ *  shortest field length, which bound the score of every document in
+ *  the block (see QrySopScore.getMaxScore).  The arguments are kept
+ *  sorted by their current docid.  The <i>pivot</i> is the first
+ *  document whose bound, from the largest block bound of each list, can
+ *  reach the threshold; every document before it is skipped.  Then the
+ *  bounds of the blocks that hold the pivot are added up.  If they
+ *  can't reach the threshold, the lists skip to the end of the shortest
+ *  of those blocks, otherwise the pivot is scored completely.
+ *  </p><p>
+ *  Indri scores are products, so bounds are added in the log domain.
+ *  A document that doesn't match an argument gets the argument's
+ *  default score, which is bounded by the collection probability; the
+ *  sum of the default bounds is the base of every document's bound, and
+ *  each matching argument adds the difference between its bound and
+ *  its default bound.
+ *  </p><p>
+ *  Documents are scored by the query's own getScore, so the result
+ *  contains every document that might be in the top k, with exactly
+ *  the score that the exhaustive DAAT loop computes.  Documents that tie
+ *  with the threshold are kept, because the external id breaks ties.
+ *  </p>
+ */
+public class BlockMaxWandEvaluator {
+
+  /**
+   *  Bounds are rounded differently than complete scores, so
+   *  comparisons with the threshold are relaxed slightly.
+   */
+  private static final double SLACK = 1e-9;
+
+  /**
+   *  Returns true if the query can be evaluated with Block-Max WAND.
+   *  The query must be a BM25 #SUM or an Indri #AND or #WAND whose
+   *  arguments are all SCORE operators over materialized inverted
+   *  lists.  The query must be initialized.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if evaluate may be called, otherwise false.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    boolean indri = (r instanceof RetrievalModelIndri);
+
+    if (! (((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum)) ||
+           (indri && ((q instanceof QrySopAnd) || (q instanceof QrySopWand)))))
+      return false;
+
+    for (int i=0; i<q.args.size(); i++) {
+      if (! (q.args.get(i) instanceof QrySopScore))
+        return false;
+
+      QryIop list = (QryIop) q.args.get(i).args.get(0);
+
+      //  An Indri term that doesn't occur scores 0 in every document,
+      //  which has no useful log.
+
+      if ((list.getInvertedList () == null) ||
+          (indri && (list.getCtf () == 0)))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Returns true if a bound can reach the threshold.
+   *  @param bound An upper bound on the score, in the bound domain.
+   *  @param threshold The threshold, in the bound domain.
+   *  @return True if the bound is not below the threshold.
+   */
+  private static boolean canReach (double bound, double threshold) {
+    return (bound + SLACK * (1.0 + Math.abs (bound)) >= threshold);
+  }
+
+  /**
+   *  Evaluate an initialized query.
+   *  @param q A query for which canEvaluate is true.
+   *  @param r The retrieval model.
+   *  @param topK The collector that the documents are offered to.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    boolean logDomain = (r instanceof RetrievalModelIndri);
+    int n = q.args.size();
+    QrySopScore[] scorers = new QrySopScore[n];
+    QryIop[] lists = new QryIop[n];
+    double[][] blockGains = new double[n][];
+    double[] maxGains = new double[n];
+    double base = 0.0;
+
+    //  The bound of a document is base plus the gains of the arguments
+    //  that it might match.  Gains are never negative.
+
+    for (int i=0; i<n; i++) {
+      scorers[i] = (QrySopScore) q.args.get(i);
+      lists[i] = (QryIop) scorers[i].args.get(0);
+
+      InvList invList = lists[i].getInvertedList ();
+      invList.computeBlockMetadata ();
+
+      double weight = 1.0;
+      double defaultBound = 0.0;
+
+      if (logDomain) {
+        weight = (q instanceof QrySopWand) ?
+          scorers[i].getWeight () / ((QrySopWand) q).argsWeightSum :
+          1.0 / n;
+        defaultBound = Math.log (scorers[i].getMaxDefaultScore (r));
+        base += weight * defaultBound;
+      }
+
+      blockGains[i] = new double[invList.getNumBlocks ()];
+
+      for (int b=0; b<blockGains[i].length; b++) {
+        double bound = scorers[i].getMaxScore (r,
+                                               invList.getBlockMaxTf (b),
+                                               invList.getBlockMinFieldLength (b));
+        double gain = logDomain ?
+          Math.max (0.0, weight * (Math.log (bound) - defaultBound)) : bound;
+
+        if (Double.isNaN (gain))
+          gain = Double.POSITIVE_INFINITY;
+
+        blockGains[i][b] = gain;
+        maxGains[i] = Math.max (maxGains[i], gain);
+      }
+    }
+
+    double threshold = Double.NEGATIVE_INFINITY;	// In the bound domain
+    int[] order = new int[n];
+    int[] docids = new int[n];
+
+    while (true) {
+
+      //  Sort the lists that aren't exhausted by their current docid
+      //  (insertion sort; queries are short).
+
+      int m = 0;
+
+      for (int i=0; i<n; i++) {
+        if (! lists[i].docIteratorHasMatch (r))
+          continue;
+
+        int d = lists[i].docIteratorGetMatch ();
+        int j = m++;
+
+        while ((j > 0) && (docids[j-1] > d)) {
+          order[j] = order[j-1];
+          docids[j] = docids[j-1];
+          j--;
+        }
+        order[j] = i;
+        docids[j] = d;
+      }
+
+      //  Find the pivot.  Lists that are on the pivot document are
+      //  included, so that every list after the pivot is beyond it.
+
+      double bound = base;
+      int p = -1;
+
+      for (int j=0; j<m; j++) {
+        bound += maxGains[order[j]];
+
+        if (canReach (bound, threshold)) {
+          p = j;
+          break;
+        }
+      }
+
+      if (p < 0)
+        break;
+
+      int pivot = docids[p];
+
+      while ((p + 1 < m) && (docids[p+1] == pivot))
+        p++;
+
+      //  Add up the bounds of the blocks that hold the pivot.  Every
+      //  document from the pivot up to (but not including) next is in
+      //  those blocks or in no list at all.
+
+      double blockBound = base;
+      int next = (p + 1 < m) ? docids[p+1] : Qry.INVALID_DOCID;
+
+      for (int j=0; j<=p; j++) {
+        int i = order[j];
+        int b = lists[i].docIteratorGetBlock (pivot);
+
+        if (b < 0)
+          continue;
+
+        blockBound += blockGains[i][b];
+
+        int last = lists[i].getInvertedList ().getBlockLastDocid (b);
+
+        if ((next == Qry.INVALID_DOCID) || (last < next - 1))
+          next = last + 1;
+      }
+
+      if (! canReach (blockBound, threshold)) {
+
+        if (next == Qry.INVALID_DOCID)
+          break;
+
+        for (int j=0; j<=p; j++)
+          scorers[order[j]].docIteratorAdvanceTo (next);
+
+      } else if (docids[0] != pivot) {
+
+        //  Documents before the pivot can't reach the threshold.
+
+        for (int j=0; docids[j] < pivot; j++)
+          scorers[order[j]].docIteratorAdvanceTo (pivot);
+
+      } else {
+
+        //  Every list that might match the pivot is on it.  Score it
+        //  exactly as the exhaustive evaluation does.
+
+        q.docIteratorAdvanceTo (pivot);
+
+        if (q.docIteratorHasMatch (r) && (q.docIteratorGetMatch () == pivot)) {
+          double score = ((QrySop) q).getScore (r);
+
+          if (topK.add (pivot, score)) {
+            threshold = topK.getThreshold ();
+
+            if (logDomain && (threshold > Double.NEGATIVE_INFINITY))
+              threshold = Math.log (threshold);
+          }
+        }
+
+        q.docIteratorAdvancePast (pivot);
+      }
+    }
+  }
+}
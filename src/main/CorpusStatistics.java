@@ -0,0 +1,105 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+
+/**
+ * CorpusStatistics is an immutable snapshot of the statistics that
+ * scorers need about the corpus and its fields.  It is read from the
+ * index once, when {@link Idx} is initialized, so SCORE operators don't
+ * ask the IndexReader for the same numbers in every query.
+ */
+public class CorpusStatistics {
+
+  /**
+   * The statistics of one field.
+   */
+  private static class FieldStatistics {
+    private final long docCount;	// Documents that have the field
+    private final long sumOfLengths;	// Term occurrences in the field
+    private final double avgLength;
+
+    private FieldStatistics(long docCount, long sumOfLengths) {
+      this.docCount = docCount;
+      this.sumOfLengths = sumOfLengths;
+      this.avgLength = ((double) sumOfLengths) / ((double) docCount);
+    }
+  }
+
+  /**
+   * The statistics of a field that isn't in the index.
+   */
+  private static final FieldStatistics NO_FIELD = new FieldStatistics(0, 0);
+
+  private final long numDocs;
+  private final Map<String, FieldStatistics> fields =
+    new HashMap<String, FieldStatistics>();
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public CorpusStatistics(IndexReader reader) throws IOException {
+    this.numDocs = reader.numDocs();
+
+    for (String field : MultiFields.getIndexedFields(reader)) {
+      this.fields.put(field,
+                      new FieldStatistics(reader.getDocCount(field),
+                                          reader.getSumTotalTermFreq(field)));
+    }
+  }
+
+  /**
+   * Returns the statistics of a field.
+   */
+  private FieldStatistics getField(String fieldName) {
+    FieldStatistics stats = this.fields.get(fieldName);
+    return (stats == null) ? NO_FIELD : stats;
+  }
+
+  /**
+   * Returns the average length of the specified field, over the
+   * documents that have it.
+   *
+   * @param fieldName The field name.
+   * @return The average field length.
+   */
+  public double getAvgFieldLength(String fieldName) {
+    return getField(fieldName).avgLength;
+  }
+
+  /**
+   * Returns the number of documents that contain the specified field.
+   *
+   * @param fieldName The field name.
+   * @return The number of documents that contain the field.
+   */
+  public long getDocCount(String fieldName) {
+    return getField(fieldName).docCount;
+  }
+
+  /**
+   * Returns the total number of documents in the corpus.
+   *
+   * @return The total number of documents.
+   */
+  public long getNumDocs() {
+    return this.numDocs;
+  }
+
+  /**
+   * Returns the total number of term occurrences contained in all
+   * instances of the specified field in the corpus.
+   *
+   * @param fieldName The field name.
+   * @return The total number of term occurrences.
+   */
+  public long getSumOfFieldLengths(String fieldName) {
+    return getField(fieldName).sumOfLengths;
+  }
+}
@@ -12,22 +12,77 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * The lengths of each field are copied out of Lucene's norms once, into
+ * an int array indexed by docid.  Fields are identified by small ints
+ * (see getFieldId), so scorers can look up lengths without hashing the
+ * field name.  Fields without norms (e.g., externalId) have no lengths.
+ * </p>
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+
+  /**
+   * lengths[fieldId][docid] is the length of the field in the document.
+   */
+  private int[][] lengths;
+
+  /**
+   * maxLengths[fieldId] is the length of the field's longest document.
+   */
+  private int[] maxLengths;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
+    int maxDoc = reader.maxDoc();
+    Map<String, int[]> fieldLengths = new HashMap<String, int[]>();
+    Map<String, Integer> fieldMaxLengths = new HashMap<String, Integer>();
+
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      NumericDocValues norms = MultiDocValues.getNormValues(reader, field);
+
+      if (norms == null)
+        continue;
+
+      int[] values = new int[maxDoc];
+      int maxLength = 0;
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        values[docid] = (int) norms.get(docid);
+        maxLength = Math.max(maxLength, values[docid]);
+      }
+
+      fieldLengths.put(field, values);
+      fieldMaxLengths.put(field, maxLength);
+    }
+
+    this.lengths = new int[fieldLengths.size()][];
+    this.maxLengths = new int[fieldLengths.size()];
+
+    for (Map.Entry<String, int[]> e : fieldLengths.entrySet()) {
+      int id = this.fieldIds.size();
+      this.fieldIds.put(e.getKey(), id);
+      this.lengths[id] = e.getValue();
+      this.maxLengths[id] = fieldMaxLengths.get(e.getKey());
     }
   }
 
+  /**
+   * Returns the id of a field, for use with getDocLength(int, int).
+   *
+   * @param fieldname Name of field.
+   * @return The field id, or -1 if the field has no lengths.
+   */
+  public int getFieldId(String fieldname) {
+    Integer id = this.fieldIds.get(fieldname);
+    return (id == null) ? -1 : id;
+  }
+
   /**
    * Returns the length of the specified field in the specified document.
    *
@@ -36,6 +91,27 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getDocLength(getFieldId(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param fieldId The id of the field (see getFieldId).
+   * @param docid The internal docid in the lucene index.
+   * @return The length, or 0 if the field has no lengths.
+   */
+  public int getDocLength(int fieldId, int docid) {
+    return (fieldId < 0) ? 0 : this.lengths[fieldId][docid];
+  }
+
+  /**
+   * Returns the length of the specified field in its longest document.
+   *
+   * @param fieldId The id of the field (see getFieldId).
+   * @return The length, or 0 if the field has no lengths.
+   */
+  public int getMaxDocLength(int fieldId) {
+    return (fieldId < 0) ? 0 : this.maxLengths[fieldId];
   }
 }
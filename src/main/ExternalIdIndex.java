@@ -0,0 +1,241 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+/**
+ * ExternalIdIndex maps external ids to internal docids in constant time
+ * without searching the Lucene index.  It is a hash table with open
+ * addressing (linear probing) that is built once into a sidecar file
+ * and memory-mapped.
+ * <p>
+ * Each slot holds a 32-bit fingerprint of an external id and its docid
+ * plus 1 (0 marks an empty slot).  The table only stores fingerprints,
+ * so a candidate docid is confirmed by comparing its external id in
+ * the {@link ExternalIdStore}.  Deleted documents aren't indexed.
+ * </p>
+ */
+public class ExternalIdIndex {
+
+  private static final int MAGIC = 0x45494958;		// "EIIX"
+  private static final int HEADER_BYTES = 24;
+
+  /**
+   * The table is at most this full, so that probe sequences are short.
+   */
+  private static final double MAX_LOAD = 0.6;
+
+  private final IntBuffer slots;
+  private final int mask;
+  private final ExternalIdStore store;
+
+  /**
+   * @param slots The mapped table, two ints per slot.
+   * @param store The external ids of the index.
+   */
+  private ExternalIdIndex (IntBuffer slots, ExternalIdStore store) {
+    this.slots = slots;
+    this.mask = (slots.capacity () / 2) - 1;
+    this.store = store;
+  }
+
+  /**
+   * Open the sidecar file for an index, building it first if it doesn't
+   * exist or was built from a different version of the index.
+   * @param file The sidecar file.
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param store The external ids of the index.
+   * @return The external id index.
+   * @throws IOException The file couldn't be read or written.
+   */
+  public static ExternalIdIndex open (File file, IndexReader reader,
+                                      ExternalIdStore store)
+    throws IOException {
+
+    long version = ExternalIdStore.getIndexVersion (reader);
+    ExternalIdIndex index = map (file, reader.maxDoc (), version, store);
+
+    if (index == null) {
+      build (file, reader, version, store);
+      index = map (file, reader.maxDoc (), version, store);
+
+      if (index == null) {
+        throw new IOException ("Unable to read " + file);
+      }
+    }
+
+    return index;
+  }
+
+  /**
+   * Build the hash table in a sidecar file.  The file is written under
+   * a temporary name and then renamed, so a partially written file is
+   * never opened.
+   * @param file The sidecar file.
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param version The version of the index.
+   * @param store The external ids of the index.
+   * @throws IOException The file couldn't be written.
+   */
+  private static void build (File file, IndexReader reader, long version,
+                             ExternalIdStore store)
+    throws IOException {
+
+    int n = reader.maxDoc ();
+    long capacity =
+      Math.max (2, Long.highestOneBit ((long) Math.ceil (n / MAX_LOAD)) * 2);
+
+    if (8L * capacity > Integer.MAX_VALUE)
+      throw new IOException ("Too many documents for " + file);
+
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    File tmp = new File (file.getPath () + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile (tmp, "rw");
+
+    try {
+      raf.setLength (0);
+      raf.setLength (HEADER_BYTES + 8L * capacity);
+
+      FileChannel channel = raf.getChannel ();
+      MappedByteBuffer buffer =
+        channel.map (FileChannel.MapMode.READ_WRITE, 0, raf.length ());
+
+      buffer.putInt (MAGIC);
+      buffer.putInt (n);
+      buffer.putLong (version);
+      buffer.putInt ((int) capacity);
+      buffer.putInt (0);
+
+      buffer.position (HEADER_BYTES);
+      IntBuffer slots = buffer.slice ().asIntBuffer ();
+      int mask = (int) capacity - 1;
+
+      for (int docid = 0; docid < n; docid++) {
+        String eid = store.get (docid);
+
+        if ((eid == null) || ((liveDocs != null) && ! liveDocs.get (docid)))
+          continue;
+
+        long h = hash (eid);
+        int fingerprint = (int) (h >>> 32);
+        int slot = (int) h & mask;
+
+        //  If an external id occurs twice, the first document keeps it.
+
+        while (slots.get (2 * slot + 1) != 0) {
+          int other = slots.get (2 * slot + 1) - 1;
+
+          if ((slots.get (2 * slot) == fingerprint) && store.matches (other, eid))
+            break;
+
+          slot = (slot + 1) & mask;
+        }
+
+        if (slots.get (2 * slot + 1) == 0) {
+          slots.put (2 * slot, fingerprint);
+          slots.put (2 * slot + 1, docid + 1);
+        }
+      }
+
+      buffer.force ();
+    } finally {
+      raf.close ();
+    }
+
+    if (! (tmp.renameTo (file) || (file.delete () && tmp.renameTo (file)))) {
+      tmp.delete ();
+      throw new IOException ("Unable to create " + file);
+    }
+  }
+
+  /**
+   * Get the internal docid of the document that has an external id.
+   * @param externalId An external id.
+   * @return The internal docid, or -1 if there is no such document.
+   */
+  public int get (String externalId) {
+    long h = hash (externalId);
+    int fingerprint = (int) (h >>> 32);
+    int slot = (int) h & this.mask;
+
+    while (true) {
+      int docid = this.slots.get (2 * slot + 1) - 1;
+
+      if (docid < 0)
+        return -1;
+
+      if ((this.slots.get (2 * slot) == fingerprint) &&
+          this.store.matches (docid, externalId))
+        return docid;
+
+      slot = (slot + 1) & this.mask;
+    }
+  }
+
+  /**
+   * A 64-bit FNV-1a hash of the characters of an external id.  The low
+   * bits choose a slot and the high bits are the fingerprint.
+   * @param externalId An external id.
+   * @return The hash.
+   */
+  private static long hash (String externalId) {
+    long h = 0xcbf29ce484222325L;
+
+    for (int i = 0; i < externalId.length (); i++) {
+      h ^= externalId.charAt (i);
+      h *= 0x100000001b3L;
+    }
+
+    return h ^ (h >>> 29);
+  }
+
+  /**
+   * Map a sidecar file if it exists and matches the index.
+   * @param file The sidecar file.
+   * @param numDocs The number of documents in the index.
+   * @param version The version of the index.
+   * @param store The external ids of the index.
+   * @return The external id index, or null if the file is missing or stale.
+   * @throws IOException The file couldn't be read.
+   */
+  private static ExternalIdIndex map (File file, int numDocs, long version,
+                                      ExternalIdStore store)
+    throws IOException {
+
+    if (! file.isFile ())
+      return null;
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      if ((raf.length () < HEADER_BYTES) ||
+          (raf.readInt () != MAGIC) ||
+          (raf.readInt () != numDocs) ||
+          (raf.readLong () != version))
+        return null;
+
+      int capacity = raf.readInt ();
+
+      if ((capacity <= 0) || (Integer.bitCount (capacity) != 1) ||
+          (raf.length () != HEADER_BYTES + 8L * capacity))
+        return null;
+
+      //  The mapping remains valid after the file is closed.
+
+      IntBuffer slots =
+        raf.getChannel ().map (FileChannel.MapMode.READ_ONLY, HEADER_BYTES,
+                               8L * capacity).asIntBuffer ();
+
+      return new ExternalIdIndex (slots, store);
+    } finally {
+      raf.close ();
+    }
+  }
+}
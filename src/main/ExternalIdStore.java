@@ -0,0 +1,263 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * ExternalIdStore maps internal docids to external ids without reading
+ * Lucene's stored fields.  The external ids are exported once into a
+ * sidecar file that is memory-mapped, so a lookup is an array access.
+ * <p>
+ * The file has a header (a magic number, the number of documents and
+ * the version of the index that it was exported from), an offsets array
+ * of numDocs+1 ints, and a heap of UTF-8 bytes.  The external id of
+ * docid d is heap[offsets[d]] through heap[offsets[d+1]-1].  It is
+ * empty if the document has no external id.
+ * </p>
+ */
+public class ExternalIdStore {
+
+  private static final int MAGIC = 0x45494431;		// "EID1"
+  private static final int HEADER_BYTES = 16;
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+  private static final Set<String> EXTERNALID_FIELD =
+    Collections.singleton ("externalId");
+  private static final byte[] NO_BYTES = new byte[0];
+
+  private final IntBuffer offsets;
+  private final ByteBuffer heap;
+
+  /**
+   * Each thread decodes external ids in its own buffer, so that a
+   * lookup allocates nothing but the returned String.
+   */
+  private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]> () {
+    @Override
+    protected byte[] initialValue () {
+      return new byte[64];
+    }
+  };
+
+  /**
+   * @param offsets The mapped offsets array.
+   * @param heap The mapped byte heap.
+   */
+  private ExternalIdStore (IntBuffer offsets, ByteBuffer heap) {
+    this.offsets = offsets;
+    this.heap = heap;
+  }
+
+  /**
+   * Open the sidecar file for an index, exporting it first if it
+   * doesn't exist or was exported from a different version of the index.
+   * @param file The sidecar file.
+   * @param reader IndexReader object created in {@link Idx}.
+   * @return The external id store.
+   * @throws IOException The file couldn't be read or written.
+   */
+  public static ExternalIdStore open (File file, IndexReader reader)
+    throws IOException {
+
+    long version = getIndexVersion (reader);
+    ExternalIdStore store = map (file, reader.maxDoc (), version);
+
+    if (store == null) {
+      export (file, reader, version);
+      store = map (file, reader.maxDoc (), version);
+
+      if (store == null) {
+        throw new IOException ("Unable to read " + file);
+      }
+    }
+
+    return store;
+  }
+
+  /**
+   * Write the external ids of every document to a sidecar file.  The
+   * file is written under a temporary name and then renamed, so a
+   * partially written file is never opened.
+   * @param file The sidecar file.
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param version The version of the index.
+   * @throws IOException The file couldn't be written.
+   */
+  private static void export (File file, IndexReader reader, long version)
+    throws IOException {
+
+    int n = reader.maxDoc ();
+    int[] offsets = new int[n + 1];
+    long heapStart = HEADER_BYTES + 4L * (n + 1);
+    File tmp = new File (file.getPath () + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile (tmp, "rw");
+
+    try {
+      raf.setLength (0);
+
+      //  Write the heap after the space reserved for the offsets, and
+      //  then go back and write the header and offsets.
+
+      FileChannel channel = raf.getChannel ();
+      channel.position (heapStart);
+      OutputStream out =
+        new BufferedOutputStream (Channels.newOutputStream (channel), 1 << 16);
+
+      for (int docid = 0; docid < n; docid++) {
+        Document d = reader.document (docid, EXTERNALID_FIELD);
+        String eid = d.get ("externalId");
+        byte[] bytes = (eid == null) ? NO_BYTES : eid.getBytes (UTF8);
+
+        if ((long) offsets[docid] + bytes.length > Integer.MAX_VALUE)
+          throw new IOException ("Too many external ids for " + file);
+
+        out.write (bytes);
+        offsets[docid + 1] = offsets[docid] + bytes.length;
+      }
+
+      out.flush ();
+
+      channel.position (0);
+      DataOutputStream header = new DataOutputStream (
+        new BufferedOutputStream (Channels.newOutputStream (channel), 1 << 16));
+      header.writeInt (MAGIC);
+      header.writeInt (n);
+      header.writeLong (version);
+
+      for (int i = 0; i <= n; i++)
+        header.writeInt (offsets[i]);
+
+      header.flush ();
+    } finally {
+      raf.close ();
+    }
+
+    if (! (tmp.renameTo (file) || (file.delete () && tmp.renameTo (file)))) {
+      tmp.delete ();
+      throw new IOException ("Unable to create " + file);
+    }
+  }
+
+  /**
+   * Returns the external id of the specified document.
+   * @param docid The internal docid in the lucene index.
+   * @return The external id, or null if the document has none.
+   */
+  public String get (int docid) {
+    int start = this.offsets.get (docid);
+    int length = this.offsets.get (docid + 1) - start;
+
+    if (length == 0)
+      return null;
+
+    byte[] bytes = SCRATCH.get ();
+
+    if (bytes.length < length) {
+      bytes = new byte[Math.max (length, 2 * bytes.length)];
+      SCRATCH.set (bytes);
+    }
+
+    for (int i = 0; i < length; i++)
+      bytes[i] = this.heap.get (start + i);
+
+    return new String (bytes, 0, length, UTF8);
+  }
+
+  /**
+   * Returns true if the specified document has the specified external
+   * id.  ASCII ids are compared without creating a String.
+   * @param docid The internal docid in the lucene index.
+   * @param externalId An external id.
+   * @return True if the document's external id is externalId.
+   */
+  public boolean matches (int docid, String externalId) {
+    int start = this.offsets.get (docid);
+    int length = this.offsets.get (docid + 1) - start;
+
+    if (length != externalId.length ())
+      return externalId.equals (this.get (docid));
+
+    for (int i = 0; i < length; i++) {
+      byte b = this.heap.get (start + i);
+
+      if (b < 0)				// Not ASCII
+        return externalId.equals (this.get (docid));
+
+      if (b != externalId.charAt (i))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Get the number of documents that the store covers.
+   * @return The number of documents.
+   */
+  public int size () {
+    return this.offsets.capacity () - 1;
+  }
+
+  /**
+   * Get the version of an index, which changes when the index does.
+   * @param reader IndexReader object created in {@link Idx}.
+   * @return The version, or -1 if it isn't known.
+   */
+  static long getIndexVersion (IndexReader reader) {
+    return (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : -1;
+  }
+
+  /**
+   * Map a sidecar file if it exists and matches the index.
+   * @param file The sidecar file.
+   * @param numDocs The number of documents in the index.
+   * @param version The version of the index.
+   * @return The external id store, or null if the file is missing or stale.
+   * @throws IOException The file couldn't be read.
+   */
+  private static ExternalIdStore map (File file, int numDocs, long version)
+    throws IOException {
+
+    if (! file.isFile ())
+      return null;
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      long heapStart = HEADER_BYTES + 4L * (numDocs + 1);
+
+      if ((raf.length () < heapStart) ||
+          (raf.readInt () != MAGIC) ||
+          (raf.readInt () != numDocs) ||
+          (raf.readLong () != version))
+        return null;
+
+      //  The mappings remain valid after the file is closed.
+
+      FileChannel channel = raf.getChannel ();
+      IntBuffer offsets =
+        channel.map (FileChannel.MapMode.READ_ONLY, HEADER_BYTES,
+                     heapStart - HEADER_BYTES).asIntBuffer ();
+      ByteBuffer heap =
+        channel.map (FileChannel.MapMode.READ_ONLY, heapStart,
+                     raf.length () - heapStart);
+
+      if (offsets.get (numDocs) != heap.capacity ())
+        return null;
+
+      return new ExternalIdStore (offsets, heap);
+    } finally {
+      raf.close ();
+    }
+  }
+}
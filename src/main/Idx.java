@@ -18,6 +18,40 @@ public class Idx {
 
   public static IndexReader INDEXREADER=null;
   private static DocLengthStore DOCLENGTHSTORE;
+  private static CorpusStatistics CORPUSSTATISTICS;
+
+  /**
+   *  The memory-mapped external ids of the index, or null if the
+   *  sidecar file couldn't be opened or created.
+   */
+  private static ExternalIdStore EXTERNALIDSTORE;
+
+  /**
+   *  The memory-mapped hash table from external ids to internal docids,
+   *  or null if it couldn't be opened or created.
+   */
+  private static ExternalIdIndex EXTERNALIDINDEX;
+
+  /**
+   *  The names of the external id sidecar files in the index directory.
+   */
+  private static final String EXTERNALIDS_FILE = "externalIds.map";
+  private static final String EXTERNALIDINDEX_FILE = "externalIdIndex.map";
+
+  /**
+   *  Without an ExternalIdStore, external ids that have been read from
+   *  the index, by internal docid, so that a document's stored fields
+   *  are read at most once.  A null entry hasn't been read yet.  Query
+   *  threads may race to fill an entry, which is harmless:  they store
+   *  equal immutable Strings.
+   */
+  private static String[] EXTERNALIDS;
+
+  /**
+   *  The only stored field that getExternalDocid reads.
+   */
+  private static final Set<String> EXTERNALID_FIELD =
+    Collections.singleton ("externalId");
 
   //  --------------- Methods ---------------------------------------
 
@@ -33,6 +67,17 @@ public class Idx {
     return d.get (attributeName);
   }
   
+  /**
+   *  Get the number of documents that contain a term in a field.
+   *  @param fieldName the field name
+   *  @param term the term
+   *  @return the document frequency of the term
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (String fieldName, String term) throws IOException {
+    return Idx.INDEXREADER.docFreq (new Term (fieldName, term));
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -40,18 +85,39 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static int getDocCount (String fieldName) throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return (int) Idx.CORPUSSTATISTICS.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the snapshot of corpus statistics that was read when the index
+   *  was opened.
+   *  @return the corpus statistics
+   */
+  public static CorpusStatistics getCorpusStatistics () {
+    return Idx.CORPUSSTATISTICS;
   }
 
   /**
    * Get the external document id for a document specified by an internal
-   * document id.
+   * document id.  It comes from the ExternalIdStore if there is one;
+   * otherwise each document's id is read from the index once, and then
+   * remembered.
    * @param iid The internal document id of the document.
    * @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get("externalId");
+    if (Idx.EXTERNALIDSTORE != null) {
+      return Idx.EXTERNALIDSTORE.get(iid);
+    }
+
+    String eid = Idx.EXTERNALIDS[iid];
+
+    if (eid == null) {
+      Document d = Idx.INDEXREADER.document(iid, Idx.EXTERNALID_FIELD);
+      eid = d.get("externalId");
+      Idx.EXTERNALIDS[iid] = eid;
+    }
+
     return eid;
   }
 
@@ -66,6 +132,36 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  This is the fast version for inner loops; the field id comes from
+   *  getFieldId.
+   *  @param fieldId The id of the field.
+   *  @param docid The internal docid in the lucene index.
+   *  @return the length of the field, including stopword positions.
+   */
+  public static int getFieldLength (int fieldId, int docid) {
+    return Idx.DOCLENGTHSTORE.getDocLength (fieldId, docid);
+  }
+
+  /**
+   *  Get the length of the specified field in its longest document.
+   *  @param fieldId The id of the field.
+   *  @return the length of the field, including stopword positions.
+   */
+  public static int getMaxFieldLength (int fieldId) {
+    return Idx.DOCLENGTHSTORE.getMaxDocLength (fieldId);
+  }
+
+  /**
+   *  Get the id of a field, for use with getFieldLength (int, int).
+   *  @param fieldName the field name
+   *  @return the field id
+   */
+  public static int getFieldId (String fieldName) {
+    return Idx.DOCLENGTHSTORE.getFieldId (fieldName);
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
@@ -77,18 +173,34 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
-    Query q = new TermQuery(new Term("externalId", externalId));
+    int docid = (Idx.EXTERNALIDINDEX != null) ?
+      Idx.EXTERNALIDINDEX.get(externalId) :
+      Idx.searchInternalDocid(new IndexSearcher(Idx.INDEXREADER), externalId);
+
+    if (docid < 0) {
+      throw new Exception("External id not found.");
+    } else {
+      return docid;
+    }
+  }
+
+  /**
+   * Search the index for the document that has an external id.  This
+   * is used when there is no ExternalIdIndex.
+   * @param searcher A searcher of the index.
+   * @param externalId An external document id.
+   * @return The internal docid, or -1 if there is no such document.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private static int searchInternalDocid(IndexSearcher searcher, String externalId)
+    throws IOException {
 
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
+    Query q = new TermQuery(new Term("externalId", externalId));
     TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
     searcher.search(q, collector);
     ScoreDoc[] hits = collector.topDocs().scoreDocs;
 
-    if (hits.length < 1) {
-      throw new Exception("External id not found.");
-    } else {
-      return hits[0].doc;
-    }
+    return (hits.length < 1) ? -1 : hits[0].doc;
   }
 
   /**
@@ -97,7 +209,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.CORPUSSTATISTICS.getNumDocs();
   }
 
   /**
@@ -110,7 +222,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.CORPUSSTATISTICS.getSumOfFieldLengths (fieldName);
   }
 
   /**
@@ -122,6 +234,13 @@ public class Idx {
   public static void initialize (String indexPath)
     throws IllegalArgumentException, IOException {
 
+    //  Cached inverted lists and results are for the index that was
+    //  open before, if any.
+
+    InvListCache.TERMS.clear ();
+    InvListCache.DERIVED.clear ();
+    ResultCache.QUERIES.clear ();
+
     //  Open the Lucene index
 
     Idx.INDEXREADER =
@@ -130,6 +249,35 @@ public class Idx {
     if (Idx.INDEXREADER == null) {
       throw new IllegalArgumentException ("Unable to open the index.");
     }
+
+    //  External ids are read from a memory-mapped sidecar file that
+    //  is exported the first time the index is opened, and are looked
+    //  up in a memory-mapped hash table that is built at the same time.
+    //  If the index directory is read-only, Lucene is used instead.
+
+    Idx.EXTERNALIDINDEX = null;
+
+    try {
+      Idx.EXTERNALIDSTORE = ExternalIdStore.open (
+        new File (indexPath, EXTERNALIDS_FILE), Idx.INDEXREADER);
+      Idx.EXTERNALIDS = null;
+    } catch (IOException ex) {
+      System.err.println ("Warning: external ids are read from stored fields. " +
+                          ex.getMessage ());
+      Idx.EXTERNALIDSTORE = null;
+      Idx.EXTERNALIDS = new String[Idx.INDEXREADER.maxDoc ()];
+    }
+
+    if (Idx.EXTERNALIDSTORE != null) {
+      try {
+        Idx.EXTERNALIDINDEX = ExternalIdIndex.open (
+          new File (indexPath, EXTERNALIDINDEX_FILE), Idx.INDEXREADER,
+          Idx.EXTERNALIDSTORE);
+      } catch (IOException ex) {
+        System.err.println ("Warning: external ids are searched in the index. " +
+                            ex.getMessage ());
+      }
+    }
   
     //  Lucene doesn't store field lengths the way that we want them,
     //  so we have our own document length store.
@@ -139,6 +287,11 @@ public class Idx {
     if (Idx.DOCLENGTHSTORE == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
+
+    //  The index doesn't change while it is open, so the statistics
+    //  that scorers use are read once.
+
+    Idx.CORPUSSTATISTICS = new CorpusStatistics (Idx.INDEXREADER);
   }
 
 }
@@ -14,11 +14,32 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in parallel primitive arrays rather than as
+ *  one object per posting.  The n'th posting is docids[n] and tfs[n];
+ *  its locations are positions[positionsOffsets[n]] through
+ *  positions[positionsOffsets[n+1]-1].  All of the locations in the
+ *  list are packed into a single array, so a list costs a handful of
+ *  objects no matter how long it is.
+ *  </p><p>
+ *  An InvList that is read from the index is not modified after it is
+ *  constructed, so one object may be shared by many query operators.
+ *  Each QryIop keeps its own iterators over the list.
+ *  </p><p>
+ *  Query terms whose locations are never examined (e.g., the arguments
+ *  of a BM25 #SUM) can be read without positions.  Such a list stores
+ *  only docids and tfs; Lucene doesn't decode the locations at all.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of a list that is built by appending postings.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -31,63 +52,94 @@ public class InvList {
    */
   public int df = 0;
 
+  /**
+   *  The largest term frequency of any posting in the list.  Dynamic
+   *  pruning uses it to bound the score of the list.
+   */
+  public int maxTf = 0;
+
   /**
    *  The field covered by the inverted list.
    */
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term in the
+   *  specified field, in ascending order.  Only the first df entries
+   *  are valid.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+  private int[] docids;
 
-  //  --------------- Nested classes --------------------------------
+  /**
+   *  Term frequencies:  tfs[n] is the number of times the term occurs
+   *  in the specified field of the n'th document.
+   */
+  private int[] tfs;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  positionsOffsets[n] is the index in positions of the first
+   *  location of the n'th document.  positionsOffsets[df] is the
+   *  number of locations stored.
    */
-  public class DocPosting {
+  private int[] positionsOffsets;
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
+  /**
+   *  The locations where the term occurs, packed document by document.
+   */
+  private int[] positions;
 
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  /**
+   *  True if the list stores the locations of each posting.
+   */
+  private boolean hasPositions = true;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The number of postings in a block.  Block-Max WAND keeps score
+   *  bounds for each block of postings, n / BLOCK_SIZE is the block of
+   *  the n'th posting.
+   */
+  public static final int BLOCK_SIZE = 64;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The per-block bounds of the postings:  maxTfs[b] is the largest tf
+   *  of the postings in block b, and minFieldLengths[b] is the shortest
+   *  length of the field in their documents.  The arrays never change
+   *  once they are computed.
+   */
+  private static final class BlockMetadata {
+    private final int[] maxTfs;
+    private final int[] minFieldLengths;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
+    private BlockMetadata (int[] maxTfs, int[] minFieldLengths) {
+      this.maxTfs = maxTfs;
+      this.minFieldLengths = minFieldLengths;
     }
   }
 
+  /**
+   *  The block metadata, or null until computeBlockMetadata is called.
+   *  It is published through a volatile field, so a list that is shared
+   *  by several queries is read without locking.
+   */
+  private volatile BlockMetadata blockMetadata = null;
+
+  /**
+   *  The approximate number of bytes used by an object or array header.
+   */
+  private static final int OBJECT_OVERHEAD_BYTES = 16;
+
+  /**
+   *  The location arrays of a list that doesn't store positions.
+   */
+  private static final int[] NO_POSITIONS = new int[0];
+
   //  --------------- Methods ---------------------------------------
 
   /**
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -96,6 +148,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -105,18 +158,47 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index, with or without locations.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions True if the locations of each posting are needed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean positions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
+    this.hasPositions = positions;
 
     //  Prepare to access the index.
 
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int termDf = Idx.INDEXREADER.docFreq(term);
+
+    if (termDf < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The index statistics give the final size of the list (unless
+    //  some documents are deleted), so the arrays are allocated once.
+
+    long termCtf = Idx.INDEXREADER.totalTermFreq(term);
+
+    this.allocate (termDf, (termCtf > 0) ? (int) termCtf : INITIAL_CAPACITY);
+
+    if (! this.hasPositions) {
+      this.readDocsAndFreqs (termBytes);
+      return;
+    }
 
     //  Lookup the inverted list.
 
@@ -133,14 +215,92 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.ctf + j] = iList.nextPosition();
+
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
+      this.df++;
+      this.ctf += tf;
+      this.maxTf = Math.max (this.maxTf, tf);
+      this.positionsOffsets[this.df] = this.ctf;
+    }
+
+    //  Lists read from the index are never modified after this point,
+    //  so they can be shared by query operators (see InvListCache).
+
+    this.trimToSize ();
+  }
+
+  /**
+   *  Copy docids and tfs from Lucene's inverted list without decoding
+   *  locations.  The arrays must already be allocated.
+   *  @param termBytes The term in the list's field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void readDocsAndFreqs (BytesRef termBytes) throws IOException {
+
+    DocsEnum iList =
+      MultiFields.getTermDocsEnum(Idx.INDEXREADER,
+				  MultiFields.getLiveDocs(Idx.INDEXREADER),
+				  this.field, termBytes, DocsEnum.FLAG_FREQS);
+
+    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+
+      int tf = iList.freq();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
+      this.ensureCapacity (this.df + 1, 0);
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
       this.df++;
       this.ctf += tf;
+      this.maxTf = Math.max (this.maxTf, tf);
+    }
+
+    this.trimToSize ();
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param docCapacity The number of postings to make room for.
+   *  @param positionsCapacity The number of locations to make room for.
+   */
+  private void allocate (int docCapacity, int positionsCapacity) {
+    this.docids = new int[docCapacity];
+    this.tfs = new int[docCapacity];
+
+    if (this.hasPositions) {
+      this.positionsOffsets = new int[docCapacity + 1];
+      this.positions = new int[positionsCapacity];
+    } else {
+      this.positionsOffsets = NO_POSITIONS;
+      this.positions = NO_POSITIONS;
+    }
+  }
+
+  /**
+   *  Make sure that the posting arrays can hold the specified number
+   *  of postings and locations, growing them if necessary.
+   *  @param docCapacity The number of postings required.
+   *  @param positionsCapacity The number of locations required.
+   */
+  private void ensureCapacity (int docCapacity, int positionsCapacity) {
+
+    if (docCapacity > this.docids.length) {
+      int n = Math.max (docCapacity, this.docids.length * 2);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+
+      if (this.hasPositions)
+        this.positionsOffsets = Arrays.copyOf (this.positionsOffsets, n + 1);
+    }
+
+    if (this.hasPositions && (positionsCapacity > this.positions.length)) {
+      int n = Math.max (positionsCapacity, this.positions.length * 2);
+      this.positions = Arrays.copyOf (this.positions, n);
     }
   }
 
@@ -148,33 +308,192 @@ public class InvList {
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array of positions where the term occurs.
+   *  @param tf The number of valid entries at the start of locations.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
-    
+  public boolean appendPosting (int docid, int[] locations, int tf) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    System.arraycopy (locations, 0, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.maxTf = Math.max (this.maxTf, tf);
+    this.positionsOffsets[this.df] = this.ctf;
     return true;
   }
 
+  /**
+   *  Compute the largest tf and the shortest field length of each block
+   *  of postings, if they haven't been computed already.  They are
+   *  computed once per list, so a cached list shares them with every
+   *  query that uses it.  Call this only after the last posting is
+   *  appended.
+   */
+  public void computeBlockMetadata() {
+
+    if (this.blockMetadata != null)
+      return;
+
+    synchronized (this) {
+      if (this.blockMetadata == null)
+        this.blockMetadata = this.buildBlockMetadata ();
+    }
+  }
+
+  /**
+   *  Compute the block metadata (see computeBlockMetadata).
+   *  @return The block metadata.
+   */
+  private BlockMetadata buildBlockMetadata() {
+
+    int blocks = this.getNumBlocks ();
+    int[] maxTfs = new int[blocks];
+    int[] minFieldLengths = new int[blocks];
+
+    Arrays.fill (minFieldLengths, Integer.MAX_VALUE);
+
+    int fieldId = Idx.getFieldId (this.field);
+
+    for (int n = 0; n < this.df; n++) {
+      int b = n / BLOCK_SIZE;
+      int length = Idx.getFieldLength (fieldId, this.docids[n]);
+
+      maxTfs[b] = Math.max (maxTfs[b], this.tfs[n]);
+      minFieldLengths[b] = Math.min (minFieldLengths[b], length);
+    }
+
+    return new BlockMetadata (maxTfs, minFieldLengths);
+  }
+
+  /**
+   *  Find the first posting at or after index start whose document id
+   *  is docid or larger.  The search gallops forward from start in
+   *  steps of 1, 2, 4, ... and then does a binary search within the
+   *  last step, so its cost grows with the log of the distance that
+   *  is skipped rather than with the distance itself.
+   *  @param start The index of the first posting to consider.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid(int start, int docid) {
+
+    if ((start >= this.df) || (this.docids[start] >= docid))
+      return start;
+
+    //  Gallop until docids[hi] >= docid.  Invariant:  docids[lo] < docid.
+
+    int lo = start;
+    int hi = start + 1;
+    int step = 1;
+
+    while ((hi < this.df) && (this.docids[hi] < docid)) {
+      lo = hi;
+      step <<= 1;
+      hi = (step >= this.df - lo) ? this.df : lo + step;
+    }
+
+    //  Binary search (lo, hi].
+
+    while (lo + 1 < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.docids[mid] < docid)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Get the document id of the last posting in block b.
+   *  @param b The index of the block.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getBlockLastDocid(int b) {
+    return this.docids[Math.min (this.df, (b + 1) * BLOCK_SIZE) - 1];
+  }
+
+  /**
+   *  Get the largest term frequency of the postings in block b.
+   *  computeBlockMetadata must have been called.
+   *  @param b The index of the block.
+   *  @return The largest term frequency.
+   */
+  public int getBlockMaxTf(int b) {
+    return this.blockMetadata.maxTfs[b];
+  }
+
+  /**
+   *  Get the shortest field length of the documents in block b.
+   *  computeBlockMetadata must have been called.
+   *  @param b The index of the block.
+   *  @return The shortest field length.
+   */
+  public int getBlockMinFieldLength(int b) {
+    return this.blockMetadata.minFieldLengths[b];
+  }
+
+  /**
+   *  Get the number of blocks of postings.
+   *  @return The number of blocks.
+   */
+  public int getNumBlocks() {
+    return (this.df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+  }
+
+  /**
+   *  Get the i'th location of the term in the n'th document of the
+   *  inverted list.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested location, 0 &lt;= i &lt; tf.
+   *  @return The location.
+   */
+  public int getPosition(int n, int i) {
+    return this.positions[this.positionsOffsets[n] + i];
+  }
+
+  /**
+   *  Returns true if the list stores the locations of each posting.
+   *  getPosition may only be called on lists that store positions.
+   *  @return True if the list stores locations, otherwise false.
+   */
+  public boolean hasPositions() {
+    return this.hasPositions;
+  }
+
+  /**
+   *  Get the approximate amount of memory used by the inverted list.
+   *  The block metadata is counted whether or not it has been computed
+   *  yet, so the size of a cached list doesn't change.
+   *  @return The size of the inverted list in bytes.
+   */
+  public long getSizeInBytes() {
+    return 7L * OBJECT_OVERHEAD_BYTES +
+      4L * (this.docids.length + this.tfs.length +
+            this.positionsOffsets.length + this.positions.length +
+            2L * this.getNumBlocks ());
   }
 
   /**
@@ -183,7 +502,26 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Release the unused capacity at the end of the posting arrays.
+   *  Call this when no more postings will be appended.
+   */
+  public void trimToSize() {
+
+    if (this.docids.length > this.df) {
+      this.docids = Arrays.copyOf (this.docids, this.df);
+      this.tfs = Arrays.copyOf (this.tfs, this.df);
+
+      if (this.hasPositions)
+        this.positionsOffsets = Arrays.copyOf (this.positionsOffsets, this.df + 1);
+    }
+
+    if (this.hasPositions && (this.positions.length > this.ctf)) {
+      this.positions = Arrays.copyOf (this.positions, this.ctf);
+    }
   }
 
   /**
@@ -194,11 +532,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; this.hasPositions && (j < this.tfs[i]); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
@@ -0,0 +1,169 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A process-wide cache of inverted lists.  A batch of queries usually
+ *  repeats popular terms and proximity clauses (e.g., #NEAR/1 (new york)),
+ *  so after warm-up most lists come from memory instead of being read
+ *  from Lucene or recomputed.
+ *  <p>
+ *  There are two caches.  TERMS holds the lists that TERM operators
+ *  read from the index.  DERIVED holds the lists that other QryIop
+ *  operators (#SYN, #NEAR/n, #WINDOW/n) compute from their arguments.
+ *  They have separate budgets because derived lists are much more
+ *  expensive to produce per byte.  Lists are keyed by
+ *  QryIop.getCanonicalForm, so two query subtrees that must produce
+ *  the same inverted list share one entry.
+ *  </p><p>
+ *  Each cache has a budget in bytes; when it is exceeded, the least
+ *  recently used lists are evicted.  A cached InvList is never
+ *  modified, so it is shared by every query operator that asks for it;
+ *  each QryIop keeps its own iterators.  A cache is disabled until its
+ *  budget is set.  All methods are thread-safe.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The inverted lists of TERM operators.
+   */
+  public static final InvListCache TERMS = new InvListCache ();
+
+  /**
+   *  The inverted lists computed by #SYN, #NEAR/n and #WINDOW/n.
+   */
+  public static final InvListCache DERIVED = new InvListCache ();
+
+  /**
+   *  The cached lists, in least recently used order.
+   */
+  private final LinkedHashMap<String, InvList> lists =
+    new LinkedHashMap<String, InvList>(1024, 0.75f, true);
+
+  private long capacity = 0;	// Budget in bytes; 0 disables the cache
+  private long size = 0;	// Bytes used by the cached lists
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get an inverted list from the cache.
+   *  @param key The canonical form of the query operator.
+   *  @return The inverted list, or null if it isn't cached.  The
+   *  caller must not modify it.
+   */
+  public synchronized InvList get (String key) {
+
+    if (this.capacity <= 0) {
+      return null;
+    }
+
+    InvList list = this.lists.get (key);
+
+    if (list != null) {
+      this.hits ++;
+    } else {
+      this.misses ++;
+    }
+
+    return list;
+  }
+
+  /**
+   *  Add an inverted list to the cache.  Lists are produced outside
+   *  of the lock, so another thread may have cached the same list in
+   *  the meantime; if so, that list is returned and should be used.
+   *  @param key The canonical form of the query operator.
+   *  @param list The inverted list.  It must not be modified later.
+   *  @return The cached inverted list.
+   */
+  public synchronized InvList put (String key, InvList list) {
+
+    InvList other = this.lists.get (key);
+
+    if (other != null) {
+      return other;
+    }
+
+    long listSize = list.getSizeInBytes ();
+
+    if (listSize > this.capacity) {		// Too big (or disabled).
+      return list;
+    }
+
+    this.lists.put (key, list);
+    this.size += listSize;
+    this.evict ();
+    return list;
+  }
+
+  /**
+   *  Evict least recently used lists until the cache is within its
+   *  budget.  The caller must hold the lock.
+   */
+  private void evict () {
+
+    Iterator<Map.Entry<String, InvList>> entries =
+      this.lists.entrySet ().iterator ();
+
+    while ((this.size > this.capacity) && entries.hasNext ()) {
+      InvList list = entries.next ().getValue ();
+      this.size -= list.getSizeInBytes ();
+      entries.remove ();
+      this.evictions ++;
+    }
+  }
+
+  /**
+   *  Remove every list from the cache, for example after the index
+   *  is reopened.  The statistics are not reset.
+   */
+  public synchronized void clear () {
+    this.lists.clear ();
+    this.size = 0;
+  }
+
+  /**
+   *  Get the cache budget.
+   *  @return The maximum number of bytes of inverted lists to cache.
+   */
+  public synchronized long getCapacity () {
+    return this.capacity;
+  }
+
+  /**
+   *  Get a summary of the cache statistics.  This is handy for tuning.
+   *  @return A string that reports hits, misses, evictions and size.
+   */
+  public synchronized String getStatistics () {
+    long requests = this.hits + this.misses;
+    return "hits: " + this.hits + ", misses: " + this.misses +
+      ", hit rate: " + ((requests == 0) ? 0.0 : (double) this.hits / requests) +
+      ", evictions: " + this.evictions + ", lists: " + this.lists.size () +
+      ", size: " + (this.size / (1024L * 1024L)) + " MB";
+  }
+
+  /**
+   *  Returns true if the cache has a budget.
+   *  @return True if lists may be cached, otherwise false.
+   */
+  public synchronized boolean isEnabled () {
+    return (this.capacity > 0);
+  }
+
+  /**
+   *  Set the cache budget.  Lists are evicted if the cache is larger
+   *  than the new budget.  A budget of 0 disables the cache.
+   *  @param bytes The maximum number of bytes of inverted lists to cache.
+   */
+  public synchronized void setCapacity (long bytes) {
+    this.capacity = bytes;
+    this.evict ();
+  }
+}
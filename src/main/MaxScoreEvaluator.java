@@ -0,0 +1,175 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Evaluates a BM25 #SUM query with MaxScore dynamic pruning.  Only
+ *  the top k documents are printed, so a document whose score can't
+ *  reach the k'th best score seen so far (the threshold) needn't be
+ *  scored completely.
+ *  <p>
+ *  Each argument has an upper bound on its score (see
+ *  QrySopScore.getMaxScore).  The arguments are sorted by bound.  The
+ *  longest prefix of arguments whose bounds add up to less than the
+ *  threshold are <i>non-essential</i>:  a document that matches only
+ *  them can't enter the top k.  Candidate documents are therefore
+ *  drawn only from the essential arguments, and the non-essential
+ *  arguments are probed with docIteratorAdvanceTo, highest bound first,
+ *  only while the document can still reach the threshold.
+ *  </p><p>
+ *  The result contains every document that might be in the top k, with
+ *  exactly the score that the exhaustive DAAT loop computes, so the top
+ *  k documents are the same.  Documents that tie with the threshold are
+ *  kept, because the external id breaks ties.
+ *  </p>
+ */
+public class MaxScoreEvaluator {
+
+  /**
+   *  Bounds and partial scores are rounded differently than complete
+   *  scores, so comparisons with the threshold are relaxed slightly.
+   */
+  private static final double SLACK = 1.0 + 1e-9;
+
+  /**
+   *  Returns true if the query can be evaluated with MaxScore.  The
+   *  query must be a BM25 #SUM whose arguments are all SCORE operators.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if evaluate may be called, otherwise false.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum)))
+      return false;
+
+    for (int i=0; i<q.args.size(); i++)
+      if (! (q.args.get(i) instanceof QrySopScore))
+        return false;
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query.
+   *  @param q A query for which canEvaluate is true.
+   *  @param r The retrieval model.
+   *  @param topK The collector that the documents are offered to.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    int n = q.args.size();
+    QrySopScore[] scorers = new QrySopScore[n];
+    double[] bounds = new double[n];
+
+    for (int i=0; i<n; i++) {
+      scorers[i] = (QrySopScore) q.args.get(i);
+      bounds[i] = scorers[i].getMaxScore (r) * SLACK;
+    }
+
+    //  Sort the arguments by bound (insertion sort; queries are short).
+    //  cumulativeBounds[j] is the sum of the j smallest bounds.
+
+    int[] order = new int[n];
+
+    for (int i=0; i<n; i++) {
+      int j = i;
+
+      while ((j > 0) && (bounds[order[j-1]] > bounds[i])) {
+        order[j] = order[j-1];
+        j--;
+      }
+      order[j] = i;
+    }
+
+    double[] cumulativeBounds = new double[n + 1];
+
+    for (int j=0; j<n; j++)
+      cumulativeBounds[j+1] = cumulativeBounds[j] + bounds[order[j]];
+
+    //  order[0 .. firstEssential-1] are the non-essential arguments.
+
+    double threshold = topK.getThreshold ();
+    int firstEssential = 0;
+    double[] argScores = new double[n];
+
+    while (true) {
+
+      //  The next candidate is the smallest docid of the essential arguments.
+
+      int docid = Qry.INVALID_DOCID;
+
+      for (int j=firstEssential; j<n; j++) {
+        QrySopScore s = scorers[order[j]];
+
+        if (s.docIteratorHasMatch (r)) {
+          int d = s.docIteratorGetMatch ();
+
+          if ((docid == Qry.INVALID_DOCID) || (d < docid))
+            docid = d;
+        }
+      }
+
+      if (docid == Qry.INVALID_DOCID)
+        break;
+
+      //  Score the essential arguments, then probe the non-essential
+      //  arguments while the document can still reach the threshold.
+
+      Arrays.fill (argScores, 0.0);
+      double score = 0.0;
+
+      for (int j=firstEssential; j<n; j++) {
+        QrySopScore s = scorers[order[j]];
+
+        if (s.docIteratorHasMatch (r) && (s.docIteratorGetMatch () == docid)) {
+          argScores[order[j]] = s.getScore (r);
+          score += argScores[order[j]];
+        }
+      }
+
+      boolean pruned = false;
+
+      for (int j=firstEssential-1; j>=0; j--) {
+        if (score + cumulativeBounds[j+1] < threshold) {
+          pruned = true;
+          break;
+        }
+
+        QrySopScore s = scorers[order[j]];
+        s.docIteratorAdvanceTo (docid);
+
+        if (s.docIteratorHasMatch (r) && (s.docIteratorGetMatch () == docid)) {
+          argScores[order[j]] = s.getScore (r);
+          score += argScores[order[j]];
+        }
+      }
+
+      if (! pruned) {
+
+        //  Add the scores in argument order, as QrySopSum does, so that
+        //  the score is identical to the exhaustive evaluation.
+
+        double total = 0.0;
+
+        for (int i=0; i<n; i++)
+          total += argScores[i];
+
+        if (topK.add (docid, total)) {
+          threshold = topK.getThreshold ();
+
+          while ((firstEssential < n) &&
+                 (cumulativeBounds[firstEssential+1] < threshold))
+            firstEssential ++;
+        }
+      }
+
+      for (int j=firstEssential; j<n; j++)
+        scorers[order[j]].docIteratorAdvancePast (docid);
+    }
+  }
+}
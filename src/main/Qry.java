@@ -103,6 +103,12 @@ public abstract class Qry {
    */
   private int docIteratorMatchCache = Qry.INVALID_DOCID;
   
+  /**
+   *  The argument that docIteratorHasMatchAll tries first, usually the
+   *  one with the fewest documents (see QryPlanner).
+   */
+  private int docIteratorLeader = 0;
+
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
@@ -259,6 +265,17 @@ public abstract class Qry {
    */
   public abstract boolean docIteratorHasMatch (RetrievalModel r);
 
+  /**
+   *  Choose the argument that docIteratorHasMatchAll tries first.  Each
+   *  document that it matches is looked up in the other arguments, so
+   *  the argument that matches the fewest documents is the best choice.
+   *  The order of the arguments doesn't change.
+   *  @param i The index of the argument.
+   */
+  public void setDocIteratorLeader (int i) {
+    this.docIteratorLeader = i;
+  }
+
   /**
    *  An instantiation of docIteratorHasMatch that is true if the
    *  query has a document that matches all query arguments; some
@@ -274,9 +291,9 @@ public abstract class Qry {
 
     while (! matchFound) {
 
-      // Get the docid of the first query argument.
+      // Get the docid of the leading query argument.
       
-      Qry q_0 = this.args.get (0);
+      Qry q_0 = this.args.get (this.docIteratorLeader);
 
       if (! q_0.docIteratorHasMatch (r)) {
     	  return false;
@@ -284,12 +301,15 @@ public abstract class Qry {
 
       int docid_0 = q_0.docIteratorGetMatch ();
 
-      // Other query arguments must match the docid of the first query
+      // Other query arguments must match the docid of the leading query
       // argument.
       
       matchFound = true;
 
-      for (int i=1; i<this.args.size(); i++) {
+      for (int i=0; i<this.args.size(); i++) {
+    	  if (i == this.docIteratorLeader)
+    		  continue;
+
     	  Qry q_i = this.args.get(i);
 
     	  q_i.docIteratorAdvanceTo (docid_0);
@@ -5,6 +5,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
@@ -56,6 +57,11 @@ public class QryEval {
   private static final String USAGE =
     "Usage:  java QryEval paramFile\n\n";
 
+  /**
+   *  The number of documents written for each query.
+   */
+  private static final int BEST_K_DOCS = 100;
+
   private static final EnglishAnalyzerConfigurable ANALYZER =
     new EnglishAnalyzerConfigurable(Version.LUCENE_43);
   private static final String[] TEXT_FIELDS =
@@ -63,6 +69,11 @@ public class QryEval {
   private static String output;
   private static Map<String, String> parameters;
   private static Map<String, ScoreList> fbDocs = new HashMap<String, ScoreList>();
+  private static boolean streamingTerms = false;
+  private static String pruning = "none";
+  private static String engine = "interpreted";
+  private static int numThreads = 1;
+  private static ForkJoinPool intraQueryPool = null;
 
 
   //  --------------- Methods ---------------------------------------
@@ -102,6 +113,78 @@ public class QryEval {
     RetrievalModel model = initializeRetrievalModel (parameters);
     output = parameters.get("trecEvalOutputPath");
 
+    //  Query terms can iterate over Lucene's inverted lists directly
+    //  instead of copying them into InvLists.
+
+    streamingTerms = parameters.containsKey("streamingTerms") &&
+      parameters.get("streamingTerms").equals("true");
+
+    //  Queries may be evaluated with dynamic pruning, which skips
+    //  documents that can't be ranked in the top BEST_K_DOCS.
+
+    if (parameters.containsKey("pruning")) {
+      pruning = parameters.get("pruning").toLowerCase();
+    }
+
+    //  Queries may be compiled into scorers that are specialized for
+    //  the retrieval model instead of being interpreted.
+
+    if (parameters.containsKey("engine")) {
+      engine = parameters.get("engine").toLowerCase();
+    }
+
+    //  A batch of queries can be evaluated by several threads.  Each
+    //  query is parsed and evaluated by one thread.
+
+    if (parameters.containsKey("numThreads")) {
+      numThreads = Integer.parseInt(parameters.get("numThreads"));
+    }
+
+    //  A heavy query can be evaluated by several threads, each of which
+    //  scores a range of docids.
+
+    if (parameters.containsKey("intraQueryThreads")) {
+      int intraQueryThreads = Integer.parseInt(parameters.get("intraQueryThreads"));
+
+      if (intraQueryThreads > 1) {
+        intraQueryPool = new ForkJoinPool(intraQueryThreads);
+      }
+    }
+
+    //  Inverted lists read from the index can be shared across queries.
+    //  The budget is in megabytes.
+
+    if (parameters.containsKey("invListCacheSize")) {
+      InvListCache.TERMS.setCapacity(
+        Long.parseLong(parameters.get("invListCacheSize")) * 1024L * 1024L);
+    }
+
+    if (parameters.containsKey("derivedInvListCacheSize")) {
+      InvListCache.DERIVED.setCapacity(
+        Long.parseLong(parameters.get("derivedInvListCacheSize")) * 1024L * 1024L);
+    }
+
+    //  The results of repeated queries can be cached.  The budget is in
+    //  megabytes, and the time to live is in seconds.
+
+    if (parameters.containsKey("resultCacheSize")) {
+      ResultCache.QUERIES.setCapacity(
+        Long.parseLong(parameters.get("resultCacheSize")) * 1024L * 1024L);
+    }
+
+    if (parameters.containsKey("resultCacheTtl")) {
+      ResultCache.QUERIES.setTimeToLive(
+        Long.parseLong(parameters.get("resultCacheTtl")) * 1000L);
+    }
+
+    //  In server mode, queries arrive over HTTP instead of from the
+    //  query file.  The server's threads keep the program running.
+
+    if (parameters.containsKey("serverPort")) {
+      startServer(model);
+      return;
+    }
+
     //  Perform experiments.   
     
     String queryFilePath = parameters.get("queryFilePath");
@@ -125,6 +208,51 @@ public class QryEval {
     
     timer.stop ();
     System.out.println ("Time:  " + timer);
+
+    if (InvListCache.TERMS.isEnabled ()) {
+      System.out.println ("InvList cache:  " + InvListCache.TERMS.getStatistics ());
+    }
+
+    if (InvListCache.DERIVED.isEnabled ()) {
+      System.out.println ("Derived InvList cache:  " + InvListCache.DERIVED.getStatistics ());
+    }
+
+    if (ResultCache.QUERIES.isEnabled ()) {
+      System.out.println ("Result cache:  " + ResultCache.QUERIES.getStatistics ());
+    }
+
+    if (intraQueryPool != null) {
+      intraQueryPool.shutdown ();
+    }
+  }
+
+  /**
+   * Start a QryServer on the loopback interface, configured by the
+   * server parameters.  It stops when the program is terminated.
+   * @param model The retrieval model.
+   * @throws IOException The port couldn't be opened.
+   */
+  private static void startServer(RetrievalModel model) throws IOException {
+    int port = Integer.parseInt(parameters.get("serverPort"));
+    int serverThreads = parameters.containsKey("serverThreads") ?
+      Integer.parseInt(parameters.get("serverThreads")) :
+      Runtime.getRuntime().availableProcessors();
+    int maxRequests = parameters.containsKey("serverMaxRequests") ?
+      Integer.parseInt(parameters.get("serverMaxRequests")) :
+      4 * serverThreads;
+    boolean virtualThreads = parameters.containsKey("serverVirtualThreads") &&
+      parameters.get("serverVirtualThreads").equals("true");
+
+    final QryServer server =
+      new QryServer(port, model, serverThreads, maxRequests, virtualThreads);
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        server.stop();
+      }
+    });
+
+    server.start();
   }
 
   /**
@@ -154,7 +282,9 @@ public class QryEval {
     else if (modelString.equals("indri")) {
 		double mu = Double.parseDouble(parameters.get("Indri:mu"));
 		double lambda = Double.parseDouble(parameters.get("Indri:lambda"));
-		model = new RetrievalModelIndri(mu, lambda);
+		boolean logDomain = parameters.containsKey("Indri:logDomain") &&
+			parameters.get("Indri:logDomain").equals("true");
+		model = new RetrievalModelIndri(mu, lambda, logDomain);
 	}
     else {
       throw new IllegalArgumentException
@@ -337,7 +467,8 @@ public class QryEval {
         //#wsum (0.7 bear 0.3 near 0.3 death) rather than #wsum (0.7 bear 0.15 near 0.15 death)
         for (int j = 0; j < t.length; j++) {
         	
-          Qry termOp = new QryIopTerm(t [j], field);
+          Qry termOp = streamingTerms ?
+            new QryIopTermStreaming(t [j], field) : new QryIopTerm(t [j], field);
           currentOp.appendArg (termOp);     
           
           if(!Double.isNaN(w)){
@@ -414,6 +545,28 @@ public class QryEval {
     return queryChanged;
   }
 
+  /**
+   * Determine which query terms need their locations.  Only the
+   * arguments of operators that combine inverted lists (e.g., #NEAR/n,
+   * #WINDOW/n, #SYN) examine locations.  Terms that are scored
+   * directly only need tf, so they are read from the index without
+   * positions, which saves most of the decoding work and memory of
+   * bag-of-words queries.
+   * @param q The query tree (or subtree) to plan.
+   * @param needed True if q's parent examines q's locations.
+   */
+  static void planPositions(Qry q, boolean needed) {
+
+    if (q instanceof QryIopTerm) {
+      ((QryIopTerm) q).setNeedsPositions(needed);
+      return;
+    }
+
+    for (int i = 0; i < q.args.size(); i++) {
+      planPositions(q.args.get(i), needed || (q instanceof QryIop));
+    }
+  }
+
   /**
    * Print a message indicating the amount of memory used. The caller
    * can indicate whether garbage collection should be performed,
@@ -434,15 +587,36 @@ public class QryEval {
   }
 
   /**
-   * Process one query.
+   * Process one query, and show the query that is evaluated.
    * @param qString A string that contains a query.
    * @param model The retrieval model determines how matching and scoring is done.
-   * @return Search results
+   * @return The top-ranked search results (see getResultDepth)
    * @throws IOException Error accessing the index
    */
   static ScoreList processQuery(String qString, RetrievalModel model)
     throws IOException {
 
+    StringBuilder echo = new StringBuilder();
+    ScoreList r = processQuery(qString, model, echo);
+
+    System.out.print(echo);
+    return r;
+  }
+
+  /**
+   * Process one query.  The query that is evaluated is not printed,
+   * because worker threads evaluate queries in any order; it is added
+   * to echo, for the caller to print.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param echo Gets a line that shows the query that is evaluated, or null.
+   * @return The top-ranked search results (see getResultDepth)
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model,
+                                StringBuilder echo)
+    throws IOException {
+
     Qry q = parseQuery(qString, model);
 
     // Optimize the query.  Remove query operators (except SCORE
@@ -482,31 +656,97 @@ public class QryEval {
     while ((q != null) && parseQueryCleanup(q))
       ;
 
+    //  A query that was evaluated before may be answered from the
+    //  result cache.
+
+    String cacheKey = null;
+    long cacheGeneration = 0;
+
+    if ((q != null) && ResultCache.QUERIES.isEnabled()) {
+      cacheKey = ResultCache.getKey(q, model);
+      cacheGeneration = ResultCache.QUERIES.getGeneration();
+
+      ScoreList cached = ResultCache.QUERIES.get(cacheKey);
+
+      if (cached != null) {
+        if (echo != null)
+          echo.append("    --> ").append(q).append(" (cached)").append(System.lineSeparator());
+        return cached;
+      }
+    }
+
+    if (q != null) {
+      planPositions(q, false);
+      QryPlanner.plan(q, model);
+      QryPlanner.shareLists(q);
+    }
+
     // Show the query that is evaluated
 
-    System.out.println("    --> " + q);
+    if (echo != null)
+      echo.append("    --> ").append(q).append(System.lineSeparator());
     
     if (q != null) {
 
-      ScoreList r = new ScoreList ();
+      //  Only the top-ranked documents are used, so they are collected
+      //  as documents are scored instead of keeping every match.
+
+      TopKCollector topK = new TopKCollector (getResultDepth ());
+      QryPlan plan;
       
       if (q.args.size () > 0) {		// Ignore empty queries
 
         q.initialize (model);
 
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
-          double score = ((QrySop) q).getScore (model);
-          r.add (docid, score);
-          q.docIteratorAdvancePast (docid);
+        if (pruning.equals ("maxscore") &&
+            MaxScoreEvaluator.canEvaluate (q, model)) {
+          MaxScoreEvaluator.evaluate (q, model, topK);
+        } else if (pruning.equals ("bmw") &&
+                   BlockMaxWandEvaluator.canEvaluate (q, model)) {
+          BlockMaxWandEvaluator.evaluate (q, model, topK);
+        } else if ((engine.equals ("compiled") || QryScorer.isLogDomain (model) ||
+                    (intraQueryPool != null)) &&
+                   (plan = QryPlan.compile (q, model)) != null) {
+          if (intraQueryPool != null)
+            plan.evaluate (topK, intraQueryPool);
+          else
+            plan.evaluate (topK);
+        } else {
+          while (q.docIteratorHasMatch (model)) {
+            int docid = q.docIteratorGetMatch ();
+            double score = ((QrySop) q).getScore (model);
+            topK.add (docid, score);
+            q.docIteratorAdvancePast (docid);
+          }
         }
       }
 
+      ScoreList r = topK.toScoreList ();
+
+      if (cacheKey != null)
+        ResultCache.QUERIES.put (cacheKey, r, cacheGeneration);
+
       return r;
     } else
       return null;
   }
 
+  /**
+   * The number of top-ranked documents of each query that are used,
+   * either to write results or to do relevance feedback.  Dynamic
+   * pruning only guarantees that this many documents are correct.
+   * @return The number of documents.
+   */
+  static int getResultDepth() {
+    int depth = BEST_K_DOCS;
+
+    if (parameters.containsKey("fbDocs")) {
+      depth = Math.max(depth, Integer.parseInt(parameters.get("fbDocs")));
+    }
+
+    return depth;
+  }
+
   /**
    * Process the query file.
    * @param queryFilePath
@@ -533,44 +773,28 @@ public class QryEval {
     	        queryExpansions.put(eqid, equery);
     	  } 
       }
-      //  Each pass of the loop processes one query.
+
+      List<String> qLines = new ArrayList<String>();
 
       while ((qLine = input.readLine()) != null) {
-        int d = qLine.indexOf(':');
+        qLines.add(qLine);
+      }
 
-        if (d < 0) {
-          throw new IllegalArgumentException
-            ("Syntax error:  Missing ':' in query line.");
-        }
+      if (numThreads > 1) {
+        processQueriesInParallel(qLines, queryExpansions, model, fbPreprocess);
+        return;
+      }
 
+      //  Each pass of the loop processes one query.
+
+      for (String line : qLines) {
         printMemoryUsage(false);
 
-        String qid = qLine.substring(0, d);
-        String query = qLine.substring(d + 1);
-        
-        System.out.println("Query " + qLine);
-
-        if(parameters.containsKey("fb") && parameters.get("fb").equals("true") && !fbPreprocess) {
-        	double fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
-        	String qexpansion = queryExpansions.get(qid);
-        	query = "#wand ( " + fbOrigWeight + " #and ( " + query + " ) "
-		    		 + (1.0-fbOrigWeight) + " "	+ qexpansion + " ) ";
-        	System.out.println("Expanded Query " + query);
-        }
-        
-        ScoreList r = null;
-
-        r = processQuery(query, model);
-
-        if (r != null && !fbPreprocess) {
-          r.sort();
-          printResults(qid, r);
-          System.out.println();
-        } else if(r !=null && fbPreprocess) {
-          r.sort();
-          r.truncate(Integer.valueOf(parameters.get("fbDocs")));
-          fbDocs.put(qid, r);
-        }
+        String[] q = parseQueryLine(line, queryExpansions, fbPreprocess);
+        printQueryHeader(line, q, fbPreprocess);
+
+        ScoreList r = processQuery(q[1], model);
+        saveResults(q[0], r, fbPreprocess);
       }
     } catch (IOException ex) {
       ex.printStackTrace();
@@ -580,6 +804,144 @@ public class QryEval {
     	  expansion.close();
     }
   }
+
+  /**
+   * Evaluate a batch of queries with numThreads worker threads.  Each
+   * worker parses and evaluates its own query tree, so no iterator
+   * state is shared; the index, the caches and the analyzer are
+   * thread-safe.  Workers don't print anything.  The evaluated queries
+   * and their results are printed (or saved for relevance feedback) by
+   * this thread in query file order, so the output is the same as when
+   * the queries are evaluated one at a time.
+   * @param qLines The lines of the query file.
+   * @param queryExpansions Expansion terms by query id, if any.
+   * @param model The retrieval model.
+   * @param fbPreprocess True if the results are feedback documents.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private static void processQueriesInParallel(List<String> qLines,
+                                               Map<String, String> queryExpansions,
+                                               final RetrievalModel model,
+                                               boolean fbPreprocess)
+    throws IOException {
+
+    ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+
+    try {
+      List<String[]> queries = new ArrayList<String[]>();
+      List<StringBuilder> echoes = new ArrayList<StringBuilder>();
+      List<Future<ScoreList>> results = new ArrayList<Future<ScoreList>>();
+
+      for (String line : qLines) {
+        final String[] q = parseQueryLine(line, queryExpansions, fbPreprocess);
+        final StringBuilder echo = new StringBuilder();
+
+        queries.add(q);
+        echoes.add(echo);
+        results.add(workers.submit(new Callable<ScoreList>() {
+          public ScoreList call() throws IOException {
+            return processQuery(q[1], model, echo);
+          }
+        }));
+      }
+
+      for (int i = 0; i < queries.size(); i++) {
+        ScoreList r;
+
+        try {
+          r = results.get(i).get();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while evaluating queries", ex);
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+
+          if (cause instanceof IOException)
+            throw (IOException) cause;
+          else if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+          else if (cause instanceof Error)
+            throw (Error) cause;
+          else
+            throw new IOException(cause);
+        }
+
+        printMemoryUsage(false);
+        printQueryHeader(qLines.get(i), queries.get(i), fbPreprocess);
+        System.out.print(echoes.get(i));
+        saveResults(queries.get(i)[0], r, fbPreprocess);
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Split a line of the query file into its query id and query, and
+   * add the relevance feedback expansion of the query, if there is one.
+   * @param qLine A line of the query file (qid:query).
+   * @param queryExpansions Expansion terms by query id, if any.
+   * @param fbPreprocess True if the initial feedback ranking is computed.
+   * @return The query id and the query.
+   */
+  private static String[] parseQueryLine(String qLine,
+                                         Map<String, String> queryExpansions,
+                                         boolean fbPreprocess) {
+    int d = qLine.indexOf(':');
+
+    if (d < 0) {
+      throw new IllegalArgumentException
+        ("Syntax error:  Missing ':' in query line.");
+    }
+
+    String qid = qLine.substring(0, d);
+    String query = qLine.substring(d + 1);
+
+    if(parameters.containsKey("fb") && parameters.get("fb").equals("true") && !fbPreprocess) {
+    	double fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
+    	String qexpansion = queryExpansions.get(qid);
+    	query = "#wand ( " + fbOrigWeight + " #and ( " + query + " ) "
+    		+ (1.0-fbOrigWeight) + " "	+ qexpansion + " ) ";
+    }
+
+    return new String[] { qid, query };
+  }
+
+  /**
+   * Print the query that is about to be evaluated (or whose results are
+   * about to be printed).
+   * @param qLine A line of the query file.
+   * @param q The query id and query from parseQueryLine.
+   * @param fbPreprocess True if the initial feedback ranking is computed.
+   */
+  private static void printQueryHeader(String qLine, String[] q, boolean fbPreprocess) {
+    System.out.println("Query " + qLine);
+
+    if(parameters.containsKey("fb") && parameters.get("fb").equals("true") && !fbPreprocess) {
+    	System.out.println("Expanded Query " + q[1]);
+    }
+  }
+
+  /**
+   * Print the results of a query, or keep them as its feedback documents.
+   * @param qid The query id.
+   * @param r The results, or null.
+   * @param fbPreprocess True if the results are feedback documents.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private static void saveResults(String qid, ScoreList r, boolean fbPreprocess)
+    throws IOException {
+
+    if (r != null && !fbPreprocess) {
+      r.sort();
+      printResults(qid, r);
+      System.out.println();
+    } else if(r !=null && fbPreprocess) {
+      r.sort();
+      r.truncate(Integer.valueOf(parameters.get("fbDocs")));
+      fbDocs.put(qid, r);
+    }
+  }
   
   
   /**
@@ -594,25 +956,39 @@ public class QryEval {
    *          A list of document ids and scores
    * @throws IOException Error accessing the Lucene index.
    */
-  static void printResults(String queryName, ScoreList result) throws IOException {
+  static synchronized void printResults(String queryName, ScoreList result) throws IOException {
 	
 	BufferedWriter bw  = new BufferedWriter(new FileWriter(output,true));	
+	String results = formatResults(queryName, result);
+	System.out.print(results);
+	bw.append(results);
+    bw.close();
+  }
+
+  /**
+   * Format the query results as printResults prints them.
+   * @param queryName
+   *          Original query.
+   * @param result
+   *          A sorted list of document ids and scores
+   * @return The lines of the results, each ending with a newline.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  static String formatResults(String queryName, ScoreList result) throws IOException {
+	StringBuilder sb = new StringBuilder();
 	final String QRY_CONS = "Q0";
 	final String EXP_IDENTIFIER = "fubar";
-	final int BEST_K_DOCS = 100;
     if (result.size() < 1) {
-    	System.out.print(queryName + " " + QRY_CONS + " dummy 1 0 " + EXP_IDENTIFIER + "\n");
-    	bw.append(queryName + " " + QRY_CONS + " dummy 1 0 " + EXP_IDENTIFIER + "\n");
+    	sb.append(queryName + " " + QRY_CONS + " dummy 1 0 " + EXP_IDENTIFIER + "\n");
     } else {
       int numOfResults = Math.min(BEST_K_DOCS,result.size());
       for (int i = 0; i < numOfResults; i++) {
-    	System.out.print(queryName + " " + QRY_CONS + " " + Idx.getExternalDocid(result.getDocid(i)) + " " 
-          		+ (i+1) + " " + result.getDocidScore(i) + " " + EXP_IDENTIFIER + "\n");
-        bw.append(queryName + " " + QRY_CONS + " " + Idx.getExternalDocid(result.getDocid(i)) + " " 
+        String externalId = result.getExternalDocid(i);
+        sb.append(queryName + " " + QRY_CONS + " " + externalId + " " 
         		+ (i+1) + " " + result.getDocidScore(i) + " " + EXP_IDENTIFIER + "\n");
       }
     }
-    bw.close();
+    return sb.toString();
   }
 
   /**
@@ -644,9 +1020,13 @@ public class QryEval {
 
     scan.close();
 
+    //  A server reads its queries from requests, not from files.
+
+    boolean server = parameters.containsKey ("serverPort");
+
     if (! (parameters.containsKey ("indexPath") &&
-           parameters.containsKey ("queryFilePath") &&
-           parameters.containsKey ("trecEvalOutputPath") &&
+           (server || parameters.containsKey ("queryFilePath")) &&
+           (server || parameters.containsKey ("trecEvalOutputPath")) &&
            parameters.containsKey ("retrievalAlgorithm"))) {
       throw new IllegalArgumentException
         ("Required parameters were missing from the parameter file.");
@@ -53,6 +53,12 @@ public abstract class QryIop extends Qry {
    */
   protected InvList invertedList = null;
 
+  /**
+   *  Another operator in the same query that produces the same inverted
+   *  list and is initialized first (see QryPlanner.shareLists), or null.
+   */
+  private QryIop listSource = null;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -65,14 +71,17 @@ public abstract class QryIop extends Qry {
 
   /**
    *  Advance the query operator's internal iterator beyond the
-   *  specified document.
+   *  specified document.  The inverted list is searched by galloping,
+   *  so long skips are cheap.
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorIndex = this.invertedList.df;
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
     }
            
     this.locIteratorIndex = 0;
@@ -80,15 +89,14 @@ public abstract class QryIop extends Qry {
 
   /**
    *  Advance the query operator's internal iterator to the specified
-   *  document if it exists, or beyond if it doesn't.
+   *  document if it exists, or beyond if it doesn't.  The inverted
+   *  list is searched by galloping, so long skips are cheap.
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
@@ -98,7 +106,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +121,25 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The document's term frequency.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
+  }
+
+  /**
+   *  Find the block of the inverted list (see InvList.BLOCK_SIZE) that
+   *  holds the first posting at or after the docIterator whose docid is
+   *  docid or larger.  The docIterator doesn't move.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the block, or -1 if there is no such posting.
+   */
+  public int docIteratorGetBlock (int docid) {
+    int n = this.invertedList.findDocid (this.docIteratorIndex, docid);
+    return (n < this.invertedList.df) ? n / InvList.BLOCK_SIZE : -1;
   }
 
   /**
@@ -130,6 +151,43 @@ public abstract class QryIop extends Qry {
     return (this.docIteratorIndex < this.invertedList.df);
   }
 
+  /**
+   *  Get a canonical string for the query operator and its arguments.
+   *  Two operators that have the same canonical form produce the same
+   *  inverted list, so it is used as a cache key.  Unlike toString,
+   *  it doesn't depend on how the user capitalized operator names.
+   *  @return The canonical form of the query operator.
+   */
+  public String getCanonicalForm () {
+    return this.getCanonicalForm (false);
+  }
+
+  /**
+   *  Build the canonical form of the query operator.  Operators whose
+   *  result doesn't depend on the order of their arguments (e.g.,
+   *  #SYN) sort the canonical forms of their arguments.
+   *  @param unordered True if the order of the arguments doesn't matter.
+   *  @return The canonical form of the query operator.
+   */
+  protected String getCanonicalForm (boolean unordered) {
+
+    String[] forms = new String[this.args.size()];
+
+    for (int i=0; i<this.args.size(); i++)
+      forms[i] = ((QryIop) this.args.get(i)).getCanonicalForm ();
+
+    if (unordered)
+      Arrays.sort (forms);
+
+    StringBuilder result =
+      new StringBuilder (this.getDisplayName ().toLowerCase ()).append ("(");
+
+    for (String form: forms)
+      result.append (' ').append (form);
+
+    return result.append (" )").toString ();
+  }
+
   /**
    *  Get the collection term frequency (ctf) associated with this
    *  query operator.  It is an error to call this method before the
@@ -150,6 +208,25 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the inverted list that the query operator iterates over.
+   *  @return The inverted list, or null if the operator doesn't
+   *  materialize one (e.g., QryIopTermStreaming).
+   */
+  public InvList getInvertedList () {
+    return this.invertedList;
+  }
+
+  /**
+   *  Get the largest term frequency of any document in the inverted
+   *  list.  It is an error to call this method before the object's
+   *  initialize method is called.
+   *  @return The largest term frequency.
+   */
+  public int getMaxTf () {
+    return this.invertedList.maxTf;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -165,6 +242,15 @@ public abstract class QryIop extends Qry {
    */
   protected abstract void evaluate () throws IOException;
 
+  /**
+   *  Share the inverted list of another operator in the same query that
+   *  produces the same list.  That operator must be initialized first.
+   *  @param source The operator whose list is shared.
+   */
+  public void setListSource (QryIop source) {
+    this.listSource = source;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
@@ -173,15 +259,41 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    //  An operator that repeats another one in the query uses its list,
+    //  with its own iterators, and doesn't evaluate its arguments.
+
+    String cacheKey = null;
+    this.invertedList = null;
+
+    if ((this.listSource != null) && (this.listSource.invertedList != null)) {
+      this.invertedList = this.listSource.invertedList;
+    } else
+
+    //  Operators that combine inverted lists may find their result in
+    //  the cache, in which case the arguments aren't evaluated at all.
 
-    for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+    if ((this.args.size () > 0) && InvListCache.DERIVED.isEnabled ()) {
+      cacheKey = this.getCanonicalForm ();
+      this.invertedList = InvListCache.DERIVED.get (cacheKey);
     }
 
-    //  Evaluate the operator.
+    if (this.invertedList == null) {
+
+      //  Initialize the query arguments (if any).
+
+      for (Qry q_i: this.args) {
+        ((QryIop) q_i).initialize (r);
+      }
+
+      //  Evaluate the operator.
     
-    this.evaluate ();
+      this.evaluate ();
+      this.invertedList.trimToSize ();
+
+      if (cacheKey != null) {
+        this.invertedList = InvListCache.DERIVED.put (cacheKey, this.invertedList);
+      }
+    }
 
     //  Initialize the internal iterators.
 
@@ -203,11 +315,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.invertedList.getPosition (this.docIteratorIndex,
+                                           this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -218,7 +330,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -229,8 +341,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
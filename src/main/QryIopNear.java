@@ -36,6 +36,8 @@ public class QryIopNear extends QryIop {
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
+    int[] positions = new int[16];
+
     while (true) {
     	//Find the minimum doc id which match all arguments. If there is none, we're done.
     	if(!this.docIteratorHasMatchAll(null))
@@ -44,17 +46,24 @@ public class QryIopNear extends QryIop {
     	
     	//  Create a new posting that is the distanced intersection of the posting lists
         //  that match the minDocid.  Save it.
-    	List<Integer> positions = new ArrayList<Integer>();
-    	positions.addAll(((QryIop)args.get(0)).docIteratorGetMatchPosting().positions);
+    	QryIop q_0 = (QryIop) args.get(0);
+    	if (q_0.docIteratorGetMatchTf() > positions.length) {
+    		positions = new int[Math.max(q_0.docIteratorGetMatchTf(), positions.length * 2)];
+    	}
+    	int n = 0;
+    	while (q_0.locIteratorHasMatch()) {
+    		positions[n++] = q_0.locIteratorGetMatch();
+    		q_0.locIteratorAdvance();
+    	}
     	
     	//Do #Near match pairwise from left to right.
-    	//Intermediate results are stored as a temp positions list
+    	//Intermediate results are stored in the positions buffer
     	//and will be used in next iteration.
     	for(int i=1;i<this.args.size();i++){
-    		positions = GreedyNearMatch(positions, (QryIop)args.get(i));   		
+    		n = GreedyNearMatch(positions, n, (QryIop)args.get(i));   		
     	}
-    	if (positions.size() > 0) {
-    		this.invertedList.appendPosting (minMatchDocId, positions);
+    	if (n > 0) {
+    		this.invertedList.appendPosting (minMatchDocId, positions, n);
 		}
     	//Move docIteratorIndex forward for all arguments.
         for (Qry q_i: this.args) {
@@ -64,20 +73,30 @@ public class QryIopNear extends QryIop {
     }
   }
   
-  public List<Integer> 	GreedyNearMatch(List<Integer> tmp, QryIop q){
-	List<Integer> locations = new ArrayList<Integer>();
+  /**
+   *  Match the locations of the document that q points to against the
+   *  first n entries of tmp.  The matching locations of q overwrite tmp
+   *  in place; at most one location is produced for each entry that is
+   *  read, so entries that have not been read yet are never overwritten.
+   *  @param tmp The locations matched so far.
+   *  @param n The number of valid entries in tmp.
+   *  @param q The query argument to match.
+   *  @return The number of matching locations now stored in tmp.
+   */
+  public int GreedyNearMatch(int[] tmp, int n, QryIop q){
+	int matches = 0;
 	//Iterate the tmp position list, match with positions of current document that q points to.
-	for (int i = 0; i < tmp.size() && (q.locIteratorHasMatch());) {
+	for (int i = 0; i < n && (q.locIteratorHasMatch());) {
 		int loc = q.locIteratorGetMatch();
-		if (tmp.get(i) >= loc) {
+		if (tmp[i] >= loc) {
 			q.locIteratorAdvancePast(loc);
 		} else {
 			//Use greedy strategy, which means if there is a match, both two points would move forward
 			//where there is no record for previous pointer therefore no back tracing.
 			//Greedy strategy is practical although it does not handle 
 			//duplicate arguments (e.g it can only identify one match using #Near/2(a b) on "a a b" )
-			if (loc - tmp.get(i) <= this.dist) {
-				locations.add(loc);
+			if (loc - tmp[i] <= this.dist) {
+				tmp[matches++] = loc;
 				i++;
 				q.locIteratorAdvancePast(loc);
 			} else {
@@ -85,9 +104,7 @@ public class QryIopNear extends QryIop {
 			}
 		}
 	}
-	//garbage collection
-	//tmp.clear();
-	return locations;
+	return matches;
   }
   
   /*
@@ -26,7 +26,10 @@ public class QryIopSyn extends QryIop {
     }
 
     //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    //  until all of the argument inverted lists are depleted.  The
+    //  locations of each document are merged in a reusable buffer.
+
+    int[] positions = new int[16];
 
     while (true) {
 
@@ -53,21 +56,39 @@ public class QryIopSyn extends QryIop {
       //  Note:  This implementation assumes that a location will not appear
       //  in two or more arguments.  #SYN (apple apple) would break it.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      int tf = 0;
 
       for (Qry q_i: this.args) {
         if (q_i.docIteratorHasMatch (null) &&
             (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-          positions.addAll (locations_i);
+          QryIop q = (QryIop) q_i;
+
+          if (tf + q.docIteratorGetMatchTf () > positions.length) {
+            positions = Arrays.copyOf (positions,
+              Math.max (tf + q.docIteratorGetMatchTf (), positions.length * 2));
+          }
+
+          while (q.locIteratorHasMatch ()) {
+            positions[tf++] = q.locIteratorGetMatch ();
+            q.locIteratorAdvance ();
+          }
+
           q_i.docIteratorAdvancePast (minDocid);
         }
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      Arrays.sort (positions, 0, tf);
+      this.invertedList.appendPosting (minDocid, positions, tf);
     }
   }
 
+  /**
+   *  The SYN operator doesn't depend on the order of its arguments, so
+   *  they are sorted in the canonical form.
+   *  @return The canonical form of this query operator.
+   */
+  @Override
+  public String getCanonicalForm () {
+    return this.getCanonicalForm (true);
+  }
 }
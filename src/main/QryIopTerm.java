@@ -16,6 +16,13 @@ public class QryIopTerm extends QryIop {
 
   private String term;
 
+  /**
+   *  False if no query operator will examine the term's locations,
+   *  in which case they needn't be read from the index.  Query
+   *  planning determines this (see QryEval.planPositions).
+   */
+  private boolean needsPositions = true;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,13 +42,58 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string that this query operator matches.
+   *  @return The term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Returns true if the term's locations are read from the index.
+   *  @return True if the locIterator may be used, otherwise false.
+   */
+  public boolean getNeedsPositions () {
+    return this.needsPositions;
+  }
+
+  /**
+   *  Indicate whether any query operator will examine the term's
+   *  locations.  If not, only docids and tfs are read from the index.
+   *  @param needsPositions True if the locIterator will be used.
+   */
+  public void setNeedsPositions (boolean needsPositions) {
+    this.needsPositions = needsPositions;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  list that may be accessed via the internal iterators.  The list
+   *  may be shared with other query operators through InvListCache.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    //  Lists with and without locations are cached separately.
+
+    String key = this.needsPositions ?
+      this.getCanonicalForm() : this.getCanonicalForm() + "#tf";
+
+    this.invertedList = InvListCache.TERMS.get(key);
+
+    if (this.invertedList == null) {
+      this.invertedList = InvListCache.TERMS.put(key,
+        new InvList(this.term, this.field, this.needsPositions));
+    }
+  }
+
+  /**
+   *  Get a canonical string for this query operator.
+   *  @return The canonical form of this query operator.
+   */
+  @Override
+  public String getCanonicalForm () {
+    return this.toString();
   }
 
   /**
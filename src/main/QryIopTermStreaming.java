@@ -0,0 +1,310 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A TERM operator that iterates directly over Lucene's inverted list
+ *  instead of copying it into an InvList when it is initialized.
+ *  docIteratorAdvanceTo and docIteratorAdvancePast are mapped onto
+ *  Lucene's advance, which uses skip lists, so a conjunction that
+ *  pairs a rare term with a common term only decodes the postings of
+ *  the common term that are near the rare term's documents.  Locations
+ *  are decoded only when the locIterator asks for them, and if query
+ *  planning determines that they are never needed, Lucene's inverted
+ *  list is opened without positions.
+ *  <p>
+ *  The df and ctf of a streaming term come from the index statistics,
+ *  because the inverted list is never read in full.  The statistics
+ *  include deleted documents, which the materialized InvList skips.
+ *  </p>
+ */
+public class QryIopTermStreaming extends QryIopTerm {
+
+  /**
+   *  Lucene's inverted list, or null if the term isn't in the index.
+   *  It is a DocsAndPositionsEnum if the term needs positions.
+   */
+  private DocsEnum postings = null;
+
+  /**
+   *  The document that the docIterator points to now.
+   */
+  private int docIteratorDocid = DocIdSetIterator.NO_MORE_DOCS;
+
+  /**
+   *  The term frequency of the document that the docIterator points to.
+   */
+  private int docIteratorTf = 0;
+
+  /**
+   *  The locations of the current document that have been decoded so far.
+   */
+  private int[] locations = new int[16];
+
+  /**
+   *  The number of valid entries in locations.
+   */
+  private int locationsDecoded = 0;
+
+  /**
+   *  The index of the location that the locIterator points to now.
+   */
+  private int locIteratorIndex = 0;
+
+  private int df = 0;
+  private int ctf = 0;
+
+  /**
+   *  The term is assumed to match the body field.
+   *  @param termString A term string.
+   */
+  public QryIopTermStreaming(String termString) {
+    super(termString);
+  }
+
+  /**
+   *  The term matches in the specified field.
+   *  @param termString A term string.
+   *  @param fieldString A field string.
+   */
+  public QryIopTermStreaming(String termString, String fieldString) {
+    super(termString, fieldString);
+  }
+
+  /**
+   *  Move the docIterator to the document that Lucene's inverted
+   *  list points to now.  The locations are decoded lazily.
+   *  @param docid The document id returned by Lucene.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void setDocIterator (int docid) throws IOException {
+    this.docIteratorDocid = docid;
+    this.docIteratorTf =
+      (docid == DocIdSetIterator.NO_MORE_DOCS) ? 0 : this.postings.freq ();
+    this.locationsDecoded = 0;
+    this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  @Override
+  public void docIteratorAdvancePast (int docid) {
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorFinish ();
+    } else if (this.docIteratorHasMatch (null) && (this.docIteratorDocid <= docid)) {
+      this.docIteratorAdvance (docid + 1);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  @Override
+  public void docIteratorAdvanceTo (int docid) {
+    if (this.docIteratorDocid < docid) {
+      this.docIteratorAdvance (docid);
+    }
+  }
+
+  /**
+   *  Move Lucene's inverted list to the first document &gt;= target.
+   *  The target must be greater than the current document.
+   *  @param target The internal document id to advance to.
+   */
+  private void docIteratorAdvance (int target) {
+    try {
+      if (target == this.docIteratorDocid + 1) {
+        this.setDocIterator (this.postings.nextDoc ());
+      } else {
+        this.setDocIterator (this.postings.advance (target));
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading the inverted list of " + this, ex);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  @Override
+  public void docIteratorFinish () {
+    this.docIteratorDocid = DocIdSetIterator.NO_MORE_DOCS;
+    this.docIteratorTf = 0;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  @Override
+  public int docIteratorGetMatch () {
+    return this.docIteratorDocid;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  @Override
+  public int docIteratorGetMatchTf () {
+    return this.docIteratorTf;
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  @Override
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    return (this.docIteratorDocid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) from the index statistics.
+   *  @return The collection term frequency (ctf).
+   */
+  @Override
+  public int getCtf () {
+    return this.ctf;
+  }
+
+  /**
+   *  Get the document frequency (df) from the index statistics.
+   *  @return The document frequency (df).
+   */
+  @Override
+  public int getDf () {
+    return this.df;
+  }
+
+  /**
+   *  The largest term frequency isn't known without reading the whole
+   *  inverted list, so no useful bound is available.
+   *  @return Integer.MAX_VALUE.
+   */
+  @Override
+  public int getMaxTf () {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Open Lucene's inverted list and point the docIterator at its
+   *  first document.  Nothing is copied.
+   *  @param r A retrieval model (that is ignored)
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  @Override
+  public void initialize (RetrievalModel r) throws IOException {
+
+    BytesRef termBytes = new BytesRef (this.getTerm ());
+    Term term = new Term (this.getField (), termBytes);
+
+    this.df = Idx.INDEXREADER.docFreq (term);
+    this.ctf = (this.df < 1) ? 0 : (int) Idx.INDEXREADER.totalTermFreq (term);
+
+    if (this.df < 1) {
+      this.postings = null;
+    } else if (this.getNeedsPositions ()) {
+      this.postings =
+        MultiFields.getTermPositionsEnum (Idx.INDEXREADER,
+                                          MultiFields.getLiveDocs (Idx.INDEXREADER),
+                                          this.getField (), termBytes);
+    } else {
+      this.postings =
+        MultiFields.getTermDocsEnum (Idx.INDEXREADER,
+                                     MultiFields.getLiveDocs (Idx.INDEXREADER),
+                                     this.getField (), termBytes,
+                                     DocsEnum.FLAG_FREQS);
+    }
+
+    if (this.postings == null) {
+      this.docIteratorFinish ();
+    } else {
+      this.setDocIterator (this.postings.nextDoc ());
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  @Override
+  public void locIteratorAdvance () {
+    this.locIteratorIndex ++;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  @Override
+  public void locIteratorAdvancePast (int loc) {
+    while ((this.locIteratorIndex < this.docIteratorTf) &&
+           (this.locIteratorGetMatch () <= loc)) {
+      this.locIteratorIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible location.
+   */
+  @Override
+  public void locIteratorFinish () {
+    this.locIteratorIndex = this.docIteratorTf;
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now, decoding locations from Lucene's inverted
+   *  list as far as necessary.
+   *  @return The current location.
+   */
+  @Override
+  public int locIteratorGetMatch () {
+
+    if (this.locIteratorIndex >= this.locationsDecoded) {
+      if (this.locIteratorIndex >= this.locations.length) {
+        this.locations = Arrays.copyOf (this.locations,
+          Math.max (this.docIteratorTf, this.locations.length * 2));
+      }
+
+      try {
+        while (this.locationsDecoded <= this.locIteratorIndex) {
+          this.locations[this.locationsDecoded++] =
+            ((DocsAndPositionsEnum) this.postings).nextPosition ();
+        }
+      } catch (IOException ex) {
+        throw new IllegalStateException ("Error reading the locations of " + this, ex);
+      }
+    }
+
+    return this.locations[this.locIteratorIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  @Override
+  public boolean locIteratorHasMatch () {
+    return (this.locIteratorIndex < this.docIteratorTf);
+  }
+}
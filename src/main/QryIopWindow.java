@@ -36,13 +36,24 @@ public class QryIopWindow extends QryIop {
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
+    int[] positions = new int[16];
+
     while (true) {
     	//Find the minimum doc id which match all arguments. If there is none, we're done.
     	if(!this.docIteratorHasMatchAll(null))
     		break;
     	int minMatchDocId = this.docIteratorGetMatchCache();
     	
-    	List<Integer> positions = new ArrayList<Integer>();
+    	//Every match advances all of the location iterators, so there are
+    	//at most as many matches as the smallest tf.
+    	int minTf = Integer.MAX_VALUE;
+    	for (int i=0; i<this.args.size(); i++) {
+    		minTf = Math.min(minTf, ((QryIop) args.get(i)).docIteratorGetMatchTf());
+    	}
+    	if (minTf > positions.length) {
+    		positions = new int[Math.max(minTf, positions.length * 2)];
+    	}
+    	int n = 0;
     	
     	//Consider #WINDOW/n(a b c). Your software iterates down the locations for a, b, and c in parallel. 
     	//Suppose the three iterators all start at the first location for each term. The window size that
@@ -76,7 +87,7 @@ public class QryIopWindow extends QryIop {
     		if (minLocArg < 0 ) {
     			break;
     		} else if (maxLoc - minLoc +1 <= windowSize) {
-    			positions.add(maxLoc);
+    			positions[n++] = maxLoc;
     			for (int i=0; i<this.args.size(); i++) {
     				((QryIop) args.get(i)).locIteratorAdvance();
     			}
@@ -85,8 +96,8 @@ public class QryIopWindow extends QryIop {
     		}
     	}
     	
-    	if (positions.size() > 0) {
-    		this.invertedList.appendPosting (minMatchDocId, positions);
+    	if (n > 0) {
+    		this.invertedList.appendPosting (minMatchDocId, positions, n);
    		}
     	
     	//Move docIteratorIndex forward for all arguments.
@@ -110,4 +121,14 @@ public class QryIopWindow extends QryIop {
       }
       return hash + windowSize;
   }
+
+  /**
+   *  The WINDOW operator doesn't depend on the order of its arguments, so
+   *  they are sorted in the canonical form.
+   *  @return The canonical form of this query operator.
+   */
+  @Override
+  public String getCanonicalForm () {
+    return this.getCanonicalForm (true);
+  }
 }
@@ -0,0 +1,433 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  An immutable query plan:  the structure of a parsed, planned and
+ *  initialized query, without any iteration state.  Each node records
+ *  its operator, the normalized weights of its arguments and, for
+ *  SCORE operators, the per-term statistics (see QrySopScore.initialize)
+ *  and the evaluated inverted list of its argument.
+ *  <p>
+ *  A plan is executed by a QryScorer tree (see newScorer), which holds
+ *  all of the state of one execution:  the scorers keep their own
+ *  positions in the inverted lists, which they only read.  So a plan
+ *  can be cached and executed any number of times, by any number of
+ *  threads at once, without parsing or initializing the query again.
+ *  (The executions of a plan share a cache of Indri default scores,
+ *  which is thread-safe; see getDefaultScores.)  The one exception is
+ *  a query with terms that stream their postings from the index
+ *  (QryIopTermStreaming), which have no list to share; such a plan can
+ *  be executed once (see isReusable).
+ *  </p><p>
+ *  Because executions are independent, a heavy query can also be
+ *  executed in parallel:  the docid space is split into ranges that
+ *  are scored by their own scorers on a fork-join pool, and the best
+ *  documents of the ranges are merged.
+ *  </p>
+ */
+public final class QryPlan {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Queries that read fewer postings than this are executed by one
+   *  thread, and each range of a parallel execution reads about this
+   *  many postings or more.
+   */
+  private static final long MIN_POSTINGS_PER_RANGE = 1 << 15;
+
+  /**
+   *  The number of ranges per worker thread of the pool, so that the
+   *  workers stay busy when some ranges are faster than others.
+   */
+  private static final int RANGES_PER_THREAD = 4;
+
+  /**
+   *  Default scores are cached for field lengths below this.
+   */
+  private static final int MAX_CACHED_DOCLEN = 1 << 16;
+
+  /**
+   *  The query operators that can be planned.
+   */
+  enum Operator { SCORE, AND, OR, SUM, WAND, WSUM }
+
+  final Operator operator;
+  final RetrievalModel model;
+  private final QryPlan[] args;
+
+  /**
+   *  The weights of the arguments divided by their sum, as the weighted
+   *  operators compute them, or null.
+   */
+  private final double[] weights;
+
+  /**
+   *  SCORE operators:  the inverted list of the argument, or null if it
+   *  streams its postings, in which case stream is the argument.
+   */
+  final InvList list;
+  final QryIop stream;
+
+  /**
+   *  SCORE operators:  the document-independent statistics.
+   */
+  final int fieldId;
+  final double avg_doclen;
+  final double idf;
+  final double user_weight;
+  final double cp;
+
+  /**
+   *  The query that was planned, for display.
+   */
+  private final String query;
+
+  /**
+   *  The cached default scores of the operator (see getDefaultScores),
+   *  or null until an execution needs them.
+   */
+  private volatile AtomicLongArray defaultScores = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Plan a SCORE operator.
+   */
+  private QryPlan (QrySopScore s, QryIop iop, RetrievalModel r) {
+    this.operator = Operator.SCORE;
+    this.model = r;
+    this.args = new QryPlan[0];
+    this.weights = null;
+    this.list = iop.getInvertedList ();
+    this.stream = (this.list == null) ? iop : null;
+    this.fieldId = s.fieldId;
+    this.avg_doclen = s.avg_doclen;
+    this.idf = s.idf;
+    this.user_weight = s.user_weight;
+    this.cp = s.cp;
+    this.query = s.toString ();
+  }
+
+  /**
+   *  Plan an operator that combines the scores of its arguments.
+   */
+  private QryPlan (Operator operator, Qry q, RetrievalModel r,
+                   QryPlan[] args, double[] weights) {
+    this.operator = operator;
+    this.model = r;
+    this.args = args;
+    this.weights = weights;
+    this.list = null;
+    this.stream = null;
+    this.fieldId = -1;
+    this.avg_doclen = 0;
+    this.idf = 0;
+    this.user_weight = 0;
+    this.cp = 0;
+    this.query = q.toString ();
+  }
+
+  /**
+   *  Plan an initialized query for a retrieval model.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The plan, or null if some query operator has no scorer for
+   *  the retrieval model (see QryScorer).
+   */
+  public static QryPlan compile (Qry q, RetrievalModel r) {
+    return compileNode (q, r);
+  }
+
+  /**
+   *  Plan a query operator and its arguments.
+   *  @param q The query operator.
+   *  @param r The retrieval model.
+   *  @return The plan, or null if the operator can't be planned.
+   */
+  private static QryPlan compileNode (Qry q, RetrievalModel r) {
+
+    if (q instanceof QrySopScore)
+      return isSupported (Operator.SCORE, r) ?
+        new QryPlan ((QrySopScore) q, (QryIop) q.args.get (0), r) : null;
+
+    Operator operator;
+
+    if (q instanceof QrySopAnd)
+      operator = Operator.AND;
+    else if (q instanceof QrySopOr)
+      operator = Operator.OR;
+    else if (q instanceof QrySopSum)
+      operator = Operator.SUM;
+    else if (q instanceof QrySopWand)
+      operator = Operator.WAND;
+    else if (q instanceof QrySopWsum)
+      operator = Operator.WSUM;
+    else
+      return null;
+
+    if (! isSupported (operator, r))
+      return null;
+
+    QryPlan[] args = new QryPlan[q.args.size ()];
+
+    for (int i=0; i<args.length; i++) {
+      args[i] = compileNode (q.args.get (i), r);
+
+      if (args[i] == null)
+        return null;
+    }
+
+    double[] weights = null;
+
+    if (q instanceof QrySopWeighted) {
+      QrySopWeighted w = (QrySopWeighted) q;
+      weights = new double[args.length];
+
+      for (int i=0; i<weights.length; i++)
+        weights[i] = ((QrySop) w.args.get (i)).getWeight () / w.argsWeightSum;
+    }
+
+    return new QryPlan (operator, q, r, args, weights);
+  }
+
+  /**
+   *  Returns true if QryScorer has a scorer for an operator in a
+   *  retrieval model.
+   *  @param operator The query operator.
+   *  @param r The retrieval model.
+   *  @return True if the operator can be planned for the model.
+   */
+  private static boolean isSupported (Operator operator, RetrievalModel r) {
+    boolean bool = (r instanceof RetrievalModelUnrankedBoolean) ||
+      (r instanceof RetrievalModelRankedBoolean);
+    boolean bm25 = (r instanceof RetrievalModelBM25);
+    boolean indri = (r instanceof RetrievalModelIndri);
+
+    if (operator == Operator.SCORE)
+      return bool || bm25 || indri;
+    else if ((operator == Operator.AND) || (operator == Operator.OR))
+      return bool || indri;
+    else if (operator == Operator.SUM)
+      return bm25;
+    else
+      return indri;				// WAND and WSUM
+  }
+
+  /**
+   *  Get the plan of an argument.
+   *  @param i The index of the argument.
+   *  @return The plan of the argument.
+   */
+  QryPlan getArg (int i) {
+    return this.args[i];
+  }
+
+  /**
+   *  Get the number of arguments.
+   *  @return The number of arguments.
+   */
+  int getNumArgs () {
+    return this.args.length;
+  }
+
+  /**
+   *  Get the normalized weights of the arguments of a weighted operator.
+   *  @return A copy of the weights.
+   */
+  double[] getWeights () {
+    return this.weights.clone ();
+  }
+
+  /**
+   *  Get the cache of the Indri default scores of the operator, whose
+   *  default score depends only on the length of one field (see
+   *  QryScorer).  Element doclen holds the raw bits of the default score
+   *  of documents whose field is doclen long, or 0 if it hasn't been
+   *  computed yet.  All executions of the plan share the cache, which
+   *  is created when it is first needed, as long as the field's longest
+   *  document, up to MAX_CACHED_DOCLEN.
+   *  @param fieldId The field whose length determines the default score.
+   *  @return The cache.
+   */
+  AtomicLongArray getDefaultScores (int fieldId) {
+    AtomicLongArray defaultScores = this.defaultScores;
+
+    if (defaultScores == null) {
+      synchronized (this) {
+        defaultScores = this.defaultScores;
+
+        if (defaultScores == null) {
+          int length =
+            Math.min (Idx.getMaxFieldLength (fieldId) + 1, MAX_CACHED_DOCLEN);
+          defaultScores = new AtomicLongArray (length);
+          this.defaultScores = defaultScores;
+        }
+      }
+    }
+
+    return defaultScores;
+  }
+
+  /**
+   *  Returns true if the plan can be executed more than once.
+   *  @return False if some term streams its postings from the index.
+   */
+  public boolean isReusable () {
+    if (this.stream != null)
+      return false;
+
+    for (QryPlan arg : this.args)
+      if (! arg.isReusable ())
+        return false;
+
+    return true;
+  }
+
+  /**
+   *  Create the state of one execution of the plan:  a scorer tree
+   *  that is positioned before the first document.
+   *  @return The scorer.
+   */
+  public QryScorer newScorer () {
+    return QryScorer.compile (this);
+  }
+
+  /**
+   *  Execute the plan, and score every document that it matches.
+   *  @param topK Collects the best documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (TopKCollector topK) throws IOException {
+    this.newScorer ().evaluate (topK);
+  }
+
+  /**
+   *  Execute the plan on a fork-join pool, and score every document
+   *  that it matches.  The docid space is split into ranges that are
+   *  scored by their own scorers, and their best documents are merged,
+   *  so the result is the same as evaluate's.  Queries that are cheap
+   *  or can't be executed more than once are executed by this thread.
+   *  @param topK Collects the best documents.
+   *  @param pool The worker threads.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (TopKCollector topK, ForkJoinPool pool)
+    throws IOException {
+
+    long numRanges = Math.min (this.getCost () / MIN_POSTINGS_PER_RANGE,
+                               (long) RANGES_PER_THREAD * pool.getParallelism ());
+
+    if ((numRanges < 2) || ! this.isReusable ())
+      this.evaluate (topK);
+    else
+      this.evaluate (topK, pool, (int) numRanges);
+  }
+
+  /**
+   *  Execute the plan in a number of docid ranges of about the same
+   *  size on a fork-join pool.
+   *  @param topK Collects the best documents.
+   *  @param pool The worker threads.
+   *  @param numRanges The number of ranges.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  void evaluate (TopKCollector topK, ForkJoinPool pool, int numRanges)
+    throws IOException {
+
+    RangeTask task = new RangeTask (this, topK.getK (),
+                                    Idx.INDEXREADER.maxDoc (), numRanges,
+                                    0, numRanges);
+
+    try {
+      topK.addAll (pool.invoke (task));
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause ();
+    }
+  }
+
+  /**
+   *  Estimate the cost of an execution of the plan.
+   *  @return The number of postings in the inverted lists of the plan.
+   */
+  long getCost () {
+    long cost = (this.list != null) ? this.list.df : 0;
+
+    for (QryPlan arg : this.args)
+      cost += arg.getCost ();
+
+    return cost;
+  }
+
+  /**
+   *  Scores ranges [firstRange, lastRange) of the docid space, which is
+   *  split into numRanges ranges, by splitting them in half until there
+   *  is just one.  Each range is scored by its own scorer.
+   */
+  private static class RangeTask extends RecursiveTask<TopKCollector> {
+    private static final long serialVersionUID = 1L;
+
+    private final QryPlan plan;
+    private final int k;
+    private final int maxDoc;
+    private final int numRanges;
+    private final int firstRange;
+    private final int lastRange;
+
+    private RangeTask (QryPlan plan, int k, int maxDoc, int numRanges,
+                       int firstRange, int lastRange) {
+      this.plan = plan;
+      this.k = k;
+      this.maxDoc = maxDoc;
+      this.numRanges = numRanges;
+      this.firstRange = firstRange;
+      this.lastRange = lastRange;
+    }
+
+    @Override
+    protected TopKCollector compute () {
+
+      try {
+        if (this.lastRange - this.firstRange > 1) {
+          int middle = (this.firstRange + this.lastRange) >>> 1;
+          RangeTask left = new RangeTask (this.plan, this.k, this.maxDoc,
+                                          this.numRanges, this.firstRange, middle);
+          RangeTask right = new RangeTask (this.plan, this.k, this.maxDoc,
+                                           this.numRanges, middle, this.lastRange);
+          left.fork ();
+
+          TopKCollector topK = right.compute ();
+          topK.addAll (left.join ());
+          return topK;
+        }
+
+        TopKCollector topK = new TopKCollector (this.k);
+        this.plan.newScorer ().evaluate (topK, this.getStart (this.firstRange),
+                                         this.getStart (this.lastRange));
+        return topK;
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+
+    /**
+     *  Get the first docid of range i (or maxDoc if i is numRanges).
+     */
+    private int getStart (int i) {
+      return (int) ((long) this.maxDoc * i / this.numRanges);
+    }
+  }
+
+  /**
+   *  Get a string version of the query that was planned.
+   *  @return The string version of the query.
+   */
+  @Override
+  public String toString () {
+    return this.query;
+  }
+}
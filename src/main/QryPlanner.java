@@ -0,0 +1,189 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A cost-based planner for the query operators that intersect their
+ *  arguments with Qry.docIteratorHasMatchAll:  #AND in the Boolean
+ *  models, #NEAR/n and #WINDOW/n.  The intersection looks up each
+ *  document of its leading argument in the other arguments, so it is
+ *  fastest when the leader is the argument with the fewest documents,
+ *  whatever order the query was typed in.
+ *  <p>
+ *  The planner estimates the number of documents (df) that each
+ *  operator matches and the number of postings read to evaluate it
+ *  (cost) from the document frequencies of the terms.  Arguments are
+ *  ordered by df and then by cost, so a term is tried before a
+ *  positional operator that is estimated to match as many documents.
+ *  #NEAR/n depends on the order of its arguments, so it keeps them and
+ *  only chooses its leader (see Qry.setDocIteratorLeader).  Operators
+ *  that score the union of their arguments (e.g., #OR, #SUM and the
+ *  Indri operators) combine scores in argument order, so they aren't
+ *  changed.
+ *  </p>
+ */
+public class QryPlanner {
+
+  /**
+   *  The estimated size and cost of a query operator.
+   */
+  private static class Estimate {
+    private final long df;		// Documents that it matches
+    private final long cost;		// Postings read to evaluate it
+
+    private Estimate (long df, long cost) {
+      this.df = df;
+      this.cost = cost;
+    }
+  }
+
+  /**
+   *  Plan a query.  Call it after the query is parsed and cleaned up,
+   *  before it is initialized.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void plan (Qry q, RetrievalModel r) throws IOException {
+    estimate (q, r);
+  }
+
+  /**
+   *  Common-subexpression elimination:  each QryIop subtree that is
+   *  structurally identical to an earlier one (i.e., has the same
+   *  canonical form) shares the earlier one's inverted list instead of
+   *  reading or computing it again, e.g., the terms that relevance
+   *  feedback adds to the original query.  Each operator still has its
+   *  own iterators.  If a shared term list is used with and without
+   *  locations, it is read with locations.  Terms that stream their
+   *  postings from the index don't have a list to share.
+   *  <p>
+   *  Operators are initialized in argument order, so the first
+   *  occurrence in a preorder walk is always initialized before the
+   *  others.  Call it after planPositions and plan, before the query
+   *  is initialized.
+   *  </p>
+   *  @param q The query.
+   */
+  public static void shareLists (Qry q) {
+    shareLists (q, new HashMap<String, QryIop> ());
+  }
+
+  /**
+   *  shareLists for a subtree.
+   *  @param q The query operator.
+   *  @param sources The first operator of each canonical form so far.
+   */
+  private static void shareLists (Qry q, Map<String, QryIop> sources) {
+
+    if ((q instanceof QryIop) && ! (q instanceof QryIopTermStreaming)) {
+      QryIop iop = (QryIop) q;
+      String key = iop.getCanonicalForm ();
+      QryIop source = sources.get (key);
+
+      if (source != null) {
+        iop.setListSource (source);
+
+        if ((iop instanceof QryIopTerm) && ((QryIopTerm) iop).getNeedsPositions ())
+          ((QryIopTerm) source).setNeedsPositions (true);
+
+        return;			// Its arguments won't be initialized
+      }
+
+      sources.put (key, iop);
+    }
+
+    for (Qry q_i : q.args)
+      shareLists (q_i, sources);
+  }
+
+  /**
+   *  Plan a query operator and its arguments, and estimate its size
+   *  and cost.
+   *  @param q The query operator.
+   *  @param r The retrieval model.
+   *  @return The estimate.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static Estimate estimate (Qry q, RetrievalModel r)
+    throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      QryIopTerm t = (QryIopTerm) q;
+      long df = Idx.getDocFreq (t.getField (), t.getTerm ());
+      return new Estimate (df, df);
+    }
+
+    final Estimate[] estimates = new Estimate[q.args.size ()];
+    long minDf = Long.MAX_VALUE;
+    long sumDf = 0;
+    long cost = 0;
+
+    for (int i = 0; i < estimates.length; i++) {
+      estimates[i] = estimate (q.args.get (i), r);
+      minDf = Math.min (minDf, estimates[i].df);
+      sumDf += estimates[i].df;
+      cost += estimates[i].cost;
+    }
+
+    if (estimates.length == 0)
+      return new Estimate (0, 0);
+
+    //  Intersections match at most as many documents as their smallest
+    //  argument.
+
+    if (q instanceof QryIopNear) {
+      int leader = 0;
+
+      for (int i = 1; i < estimates.length; i++)
+        if (isCheaper (estimates[i], estimates[leader]))
+          leader = i;
+
+      q.setDocIteratorLeader (leader);
+      return new Estimate (minDf, cost);
+    }
+
+    if ((q instanceof QryIopWindow) ||
+        ((q instanceof QrySopAnd) && ! (r instanceof RetrievalModelIndri))) {
+      Integer[] order = new Integer[estimates.length];
+
+      for (int i = 0; i < order.length; i++)
+        order[i] = i;
+
+      Arrays.sort (order, new Comparator<Integer> () {
+        public int compare (Integer a, Integer b) {
+          if (isCheaper (estimates[a], estimates[b]))
+            return -1;
+          else if (isCheaper (estimates[b], estimates[a]))
+            return 1;
+          else
+            return 0;
+        }
+      });
+
+      ArrayList<Qry> args = new ArrayList<Qry> (q.args.size ());
+
+      for (int i = 0; i < order.length; i++)
+        args.add (q.args.get (order[i]));
+
+      q.args.clear ();
+      q.args.addAll (args);
+      return new Estimate (minDf, cost);
+    }
+
+    //  Unions match at most as many documents as their arguments
+    //  together.
+
+    return new Estimate (Math.min (sumDf, Idx.getNumDocs ()), cost);
+  }
+
+  /**
+   *  Returns true if an operator should lead an intersection before
+   *  another one.
+   */
+  private static boolean isCheaper (Estimate a, Estimate b) {
+    return (a.df < b.df) || ((a.df == b.df) && (a.cost < b.cost));
+  }
+}
@@ -0,0 +1,1254 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  A compiled query:  a tree of scorers that are specialized for one
+ *  retrieval model.  The QrySop operators decide what to do by testing
+ *  the class of the retrieval model and reading its parameters for
+ *  every document.  compile does that once per query, so each scorer
+ *  class does just one thing, with the model parameters and the
+ *  per-term weights (see QrySopScore.initialize) folded into final
+ *  fields.  The JIT can then inline the scoring kernels.
+ *  <p>
+ *  Scorers are compiled from an immutable QryPlan, and hold all of the
+ *  state of one execution of it.  Each scorer matches and scores
+ *  documents exactly as the QrySop operator that it was compiled from,
+ *  with the same arithmetic, so the results are identical; the one
+ *  exception is that Indri #AND and #WAND correct a cached default
+ *  score for the arguments that match, so their scores differ only by
+ *  rounding.  Query operators that don't support the retrieval model
+ *  aren't compiled.
+ *  </p><p>
+ *  If the Indri model is in the log domain, Indri scorers return the
+ *  log of their beliefs, so #AND and #WAND combine their arguments
+ *  with a weighted sum instead of a Math.pow per argument, and long
+ *  queries don't underflow.  The root converts the log back, so the
+ *  scores differ from the interpreted ones only by rounding.
+ *  </p>
+ */
+public abstract class QryScorer {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The arguments of the scorer.  Scorers for SCORE operators have none.
+   */
+  protected final QryScorer[] args;
+
+  /**
+   *  The document that hasMatch matched, or Qry.INVALID_DOCID.
+   */
+  protected int docid = Qry.INVALID_DOCID;
+
+  /**
+   *  The default field id of Indri scorers whose default score doesn't
+   *  depend on the length of just one field.
+   */
+  private static final int MIXED_FIELDS = -2;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args The arguments of the scorer.
+   */
+  protected QryScorer (QryScorer[] args) {
+    this.args = args;
+  }
+
+  /**
+   *  Create the scorers for one execution of a query plan.  QryPlan
+   *  only plans operators that have a scorer for its retrieval model.
+   *  @param plan The query plan.
+   *  @return The scorer.
+   */
+  static QryScorer compile (QryPlan plan) {
+    QryScorer scorer = compileNode (plan);
+
+    if (isLogDomain (plan.model))
+      scorer = new IndriExp (scorer);
+
+    return scorer;
+  }
+
+  /**
+   *  Compile a node of a query plan and its arguments.
+   *  @param p The node of the query plan.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException An operator has no scorer for
+   *  the retrieval model, which QryPlan doesn't plan.
+   */
+  private static QryScorer compileNode (QryPlan p) {
+    RetrievalModel r = p.model;
+    boolean log = isLogDomain (r);
+
+    if (p.operator == QryPlan.Operator.SCORE) {
+      if (r instanceof RetrievalModelUnrankedBoolean)
+        return new UnrankedBooleanScore (p);
+      else if (r instanceof RetrievalModelRankedBoolean)
+        return new RankedBooleanScore (p);
+      else if (r instanceof RetrievalModelBM25)
+        return new Bm25Score (p, (RetrievalModelBM25) r);
+      else if (r instanceof RetrievalModelIndri)
+        return log ?
+          new IndriLogScore (p, (RetrievalModelIndri) r) :
+          new IndriScore (p, (RetrievalModelIndri) r);
+    }
+
+    QryScorer[] args = new QryScorer[p.getNumArgs ()];
+
+    for (int i=0; i<args.length; i++)
+      args[i] = compileNode (p.getArg (i));
+
+    QryPlan.Operator op = p.operator;
+
+    if (op == QryPlan.Operator.AND) {
+      if (r instanceof RetrievalModelUnrankedBoolean)
+        return new UnrankedBooleanAnd (args);
+      else if (r instanceof RetrievalModelRankedBoolean)
+        return new RankedBooleanAnd (args);
+      else if (r instanceof RetrievalModelIndri)
+        return log ? new IndriLogAnd (p, args) : new IndriAnd (p, args);
+    } else if (op == QryPlan.Operator.OR) {
+      if (r instanceof RetrievalModelUnrankedBoolean)
+        return new UnrankedBooleanOr (args);
+      else if (r instanceof RetrievalModelRankedBoolean)
+        return new RankedBooleanOr (args);
+      else if (r instanceof RetrievalModelIndri)
+        return log ? new IndriLogOr (p, args) : new IndriOr (p, args);
+    } else if (op == QryPlan.Operator.SUM) {
+      if (r instanceof RetrievalModelBM25)
+        return new Bm25Sum (args);
+    } else if (op == QryPlan.Operator.WSUM) {
+      if (r instanceof RetrievalModelIndri)
+        return log ?
+          new IndriLogWsum (p, args, p.getWeights ()) :
+          new IndriWsum (p, args, p.getWeights ());
+    } else if (op == QryPlan.Operator.WAND) {
+      if (r instanceof RetrievalModelIndri)
+        return log ?
+          new IndriLogWand (p, args, p.getWeights ()) :
+          new IndriWand (p, args, p.getWeights ());
+    }
+
+    throw new IllegalArgumentException
+      ("No scorer for " + p.operator + " in " + r.getClass ().getSimpleName ());
+  }
+
+  /**
+   *  Returns true if queries are scored in the log domain.
+   *  @param r The retrieval model.
+   *  @return True for the Indri model in the log domain.
+   */
+  public static boolean isLogDomain (RetrievalModel r) {
+    return (r instanceof RetrievalModelIndri) &&
+      ((RetrievalModelIndri) r).isLogDomain ();
+  }
+
+  /**
+   *  Advance the scorer beyond the specified document.
+   *  @param docid An internal document id.
+   */
+  public void advancePast (int docid) {
+    for (int i=0; i<this.args.length; i++)
+      this.args[i].advancePast (docid);
+
+    this.docid = Qry.INVALID_DOCID;
+  }
+
+  /**
+   *  Advance the scorer to the specified document, or beyond if it
+   *  doesn't match.
+   *  @param docid An internal document id.
+   */
+  public void advanceTo (int docid) {
+    for (int i=0; i<this.args.length; i++)
+      this.args[i].advanceTo (docid);
+
+    this.docid = Qry.INVALID_DOCID;
+  }
+
+  /**
+   *  Return the document that hasMatch matched.
+   *  @return The internal document id.
+   */
+  public int getMatch () {
+    return this.docid;
+  }
+
+  /**
+   *  Score every document that the scorer matches.
+   *  @param topK Collects the best documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (TopKCollector topK) throws IOException {
+    while (this.hasMatch ()) {
+      int docid = this.docid;
+      topK.add (docid, this.getScore ());
+      this.advancePast (docid);
+    }
+  }
+
+  /**
+   *  Score the documents in a range of docids that the scorer matches.
+   *  The scorer must not be beyond the start of the range.
+   *  @param topK Collects the best documents.
+   *  @param minDocid The first document of the range.
+   *  @param maxDocid The document after the range.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (TopKCollector topK, int minDocid, int maxDocid)
+    throws IOException {
+
+    this.advanceTo (minDocid);
+
+    while (this.hasMatch () && (this.docid < maxDocid)) {
+      int docid = this.docid;
+      topK.add (docid, this.getScore ());
+      this.advancePast (docid);
+    }
+  }
+
+  /**
+   *  Get a score for the document that hasMatch matched.
+   *  @return The document score.
+   */
+  public abstract double getScore ();
+
+  /**
+   *  Indicates whether the scorer has a matching document, and caches it.
+   *  @return True if the scorer matches a document, otherwise false.
+   */
+  public abstract boolean hasMatch ();
+
+  /**
+   *  Returns true if argument i matched the current document.  Arguments
+   *  cache their matches, so nothing is recomputed.
+   *  @param i The index of the argument.
+   *  @return True if argument i is on the current document.
+   */
+  protected final boolean argMatches (int i) {
+    return (this.args[i].docid == this.docid) && (this.docid != Qry.INVALID_DOCID);
+  }
+
+  /**
+   *  hasMatch for scorers that match documents that all arguments
+   *  match (see Qry.docIteratorHasMatchAll).
+   *  @return True if the scorer matches a document, otherwise false.
+   */
+  protected final boolean hasMatchAll () {
+
+    while (true) {
+      QryScorer q_0 = this.args[0];
+
+      if (! q_0.hasMatch ())
+        return false;
+
+      int docid_0 = q_0.docid;
+      boolean matchFound = true;
+
+      for (int i=1; i<this.args.length; i++) {
+        QryScorer q_i = this.args[i];
+        q_i.advanceTo (docid_0);
+
+        if (! q_i.hasMatch ())
+          return false;
+
+        if (q_i.docid != docid_0) {
+          q_0.advanceTo (q_i.docid);
+          matchFound = false;
+          break;
+        }
+      }
+
+      if (matchFound) {
+        this.docid = docid_0;
+        return true;
+      }
+    }
+  }
+
+  //  --------------- Disjunctions ----------------------------------
+
+  /**
+   *  The base class of scorers that match documents that any argument
+   *  matches (see Qry.docIteratorHasMatchMin).  Instead of asking every
+   *  argument for its match, the arguments are kept in a min-heap by
+   *  docid, so moving to the next document costs O(log n) per argument
+   *  that was on the current document, and the arguments on it are
+   *  listed in getMatchingArgs.  Arguments that are beyond the current
+   *  document aren't touched.
+   */
+  private abstract static class Disjunction extends QryScorer {
+
+    /**
+     *  The arguments that aren't on the current document, as a min-heap
+     *  of argument indices ordered by their docids.  Exhausted arguments
+     *  aren't in the heap.
+     */
+    private final int[] heap;
+    private int heapSize = 0;
+
+    /**
+     *  The indices of the arguments on the current document, ascending,
+     *  so that scores are combined in the same order as the operators do.
+     */
+    protected final int[] matchingArgs;
+    protected int numMatchingArgs = 0;
+
+    private boolean started = false;
+
+    protected Disjunction (QryScorer[] args) {
+      super (args);
+      this.heap = new int[args.length];
+      this.matchingArgs = new int[args.length];
+    }
+
+    @Override
+    public final void advancePast (int docid) {
+      this.start ();
+
+      if (this.docid <= docid) {
+        for (int i=0; i<this.numMatchingArgs; i++)
+          this.advanceArg (this.matchingArgs[i], docid, true);
+
+        this.numMatchingArgs = 0;
+        this.docid = Qry.INVALID_DOCID;
+      }
+
+      while ((this.heapSize > 0) && (this.args[this.heap[0]].docid <= docid))
+        this.advanceArg (this.pop (), docid, true);
+    }
+
+    @Override
+    public final void advanceTo (int docid) {
+      this.start ();
+
+      if (this.docid < docid) {
+        for (int i=0; i<this.numMatchingArgs; i++)
+          this.advanceArg (this.matchingArgs[i], docid, false);
+
+        this.numMatchingArgs = 0;
+        this.docid = Qry.INVALID_DOCID;
+      }
+
+      while ((this.heapSize > 0) && (this.args[this.heap[0]].docid < docid))
+        this.advanceArg (this.pop (), docid, false);
+    }
+
+    /**
+     *  Advance an argument that isn't in the heap, and put it back in
+     *  the heap unless it is exhausted.
+     */
+    private void advanceArg (int i, int docid, boolean past) {
+      if (past)
+        this.args[i].advancePast (docid);
+      else
+        this.args[i].advanceTo (docid);
+
+      if (this.args[i].hasMatch ())
+        this.push (i);
+    }
+
+    @Override
+    public final boolean hasMatch () {
+      this.start ();
+
+      if (this.numMatchingArgs > 0)
+        return true;
+
+      if (this.heapSize == 0)
+        return false;
+
+      //  Move the arguments on the smallest docid out of the heap, and
+      //  sort them by index.  There are usually few of them.
+
+      int minDocid = this.args[this.heap[0]].docid;
+
+      while ((this.heapSize > 0) && (this.args[this.heap[0]].docid == minDocid)) {
+        int i = this.pop ();
+        int j = this.numMatchingArgs++;
+
+        while ((j > 0) && (this.matchingArgs[j - 1] > i)) {
+          this.matchingArgs[j] = this.matchingArgs[j - 1];
+          j--;
+        }
+
+        this.matchingArgs[j] = i;
+      }
+
+      this.docid = minDocid;
+      return true;
+    }
+
+    /**
+     *  Remove the argument with the smallest docid from the heap.
+     */
+    private int pop () {
+      int top = this.heap[0];
+      int last = this.heap[--this.heapSize];
+      int docid = this.args[last].docid;
+      int i = 0;
+
+      while (true) {
+        int child = 2 * i + 1;
+
+        if (child >= this.heapSize)
+          break;
+
+        if ((child + 1 < this.heapSize) &&
+            (this.args[this.heap[child + 1]].docid < this.args[this.heap[child]].docid))
+          child++;
+
+        if (this.args[this.heap[child]].docid >= docid)
+          break;
+
+        this.heap[i] = this.heap[child];
+        i = child;
+      }
+
+      this.heap[i] = last;
+      return top;
+    }
+
+    /**
+     *  Add an argument that has a match to the heap.
+     */
+    private void push (int arg) {
+      int docid = this.args[arg].docid;
+      int i = this.heapSize++;
+
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+
+        if (this.args[this.heap[parent]].docid <= docid)
+          break;
+
+        this.heap[i] = this.heap[parent];
+        i = parent;
+      }
+
+      this.heap[i] = arg;
+    }
+
+    /**
+     *  Put the arguments that have a match in the heap, the first time
+     *  that the scorer is used.
+     */
+    private void start () {
+      if (this.started)
+        return;
+
+      this.started = true;
+
+      for (int i=0; i<this.args.length; i++)
+        if (this.args[i].hasMatch ())
+          this.push (i);
+    }
+  }
+
+  //  --------------- SCORE operators -------------------------------
+
+  /**
+   *  The base class of the SCORE scorers.  Each one iterates over the
+   *  inverted list of its plan with its own index, so scorers for the
+   *  same plan can run at the same time.  Terms that stream their
+   *  postings are iterated by the QryIop itself.
+   */
+  private abstract static class Score extends QryScorer {
+    private final InvList list;
+    private final QryIop stream;
+    private int index = 0;
+
+    protected Score (QryPlan p) {
+      super (new QryScorer[0]);
+      this.list = p.list;
+      this.stream = p.stream;
+    }
+
+    @Override
+    public void advancePast (int docid) {
+      if (this.list == null)
+        this.stream.docIteratorAdvancePast (docid);
+      else if (docid == Integer.MAX_VALUE)
+        this.index = this.list.df;
+      else
+        this.index = this.list.findDocid (this.index, docid + 1);
+
+      this.docid = Qry.INVALID_DOCID;
+    }
+
+    @Override
+    public void advanceTo (int docid) {
+      if (this.list == null)
+        this.stream.docIteratorAdvanceTo (docid);
+      else
+        this.index = this.list.findDocid (this.index, docid);
+
+      this.docid = Qry.INVALID_DOCID;
+    }
+
+    @Override
+    public final boolean hasMatch () {
+      if (this.list == null) {
+        if (this.stream.docIteratorHasMatch (null)) {
+          this.docid = this.stream.docIteratorGetMatch ();
+          return true;
+        }
+      } else if (this.index < this.list.df) {
+        this.docid = this.list.getDocid (this.index);
+        return true;
+      }
+
+      return false;
+    }
+
+    /**
+     *  Get the term frequency of the document that hasMatch matched.
+     *  @return The term frequency.
+     */
+    protected final int getTf () {
+      return (this.list == null) ?
+        this.stream.docIteratorGetMatchTf () :
+        this.list.getTf (this.index);
+    }
+  }
+
+  /**
+   *  SCORE for the unranked Boolean retrieval model.
+   */
+  private static final class UnrankedBooleanScore extends Score {
+    UnrankedBooleanScore (QryPlan p) {
+      super (p);
+    }
+
+    @Override
+    public double getScore () {
+      return 1.0;
+    }
+  }
+
+  /**
+   *  SCORE for the ranked Boolean retrieval model:  the tf.
+   */
+  private static final class RankedBooleanScore extends Score {
+    RankedBooleanScore (QryPlan p) {
+      super (p);
+    }
+
+    @Override
+    public double getScore () {
+      return (double) this.getTf ();
+    }
+  }
+
+  /**
+   *  SCORE for the BM25 retrieval model.
+   */
+  private static final class Bm25Score extends Score {
+    private final int fieldId;
+    private final double k_1;
+    private final double b;
+    private final double oneMinusB;
+    private final double avg_doclen;
+    private final double idf;
+    private final double user_weight;
+
+    Bm25Score (QryPlan s, RetrievalModelBM25 r) {
+      super (s);
+      this.fieldId = s.fieldId;
+      this.k_1 = r.getK_1 ();
+      this.b = r.getB ();
+      this.oneMinusB = 1 - this.b;
+      this.avg_doclen = s.avg_doclen;
+      this.idf = s.idf;
+      this.user_weight = s.user_weight;
+    }
+
+    @Override
+    public double getScore () {
+      double tf = (double) this.getTf ();
+      double doclen = (double) Idx.getFieldLength (this.fieldId, this.docid);
+      double tf_weight =
+        tf / (tf + this.k_1 * (this.oneMinusB + (this.b * doclen / this.avg_doclen)));
+
+      return this.idf * tf_weight * this.user_weight;
+    }
+  }
+
+  /**
+   *  SCORE for the Indri retrieval model.
+   */
+  private static class IndriScore extends Score implements IndriBelief {
+    private final int fieldId;
+    private final double mu;
+    private final double oneMinusLambda;
+    private final double muCp;
+    private final double lambdaCp;
+    private final double defaultNumerator;		// For tf = 0
+
+    IndriScore (QryPlan s, RetrievalModelIndri r) {
+      super (s);
+      this.fieldId = s.fieldId;
+      this.mu = r.getMu ();
+      this.oneMinusLambda = 1 - r.getLambda ();
+      this.muCp = this.mu * s.cp;
+      this.lambdaCp = r.getLambda () * s.cp;
+      this.defaultNumerator = this.oneMinusLambda * this.muCp;
+    }
+
+    @Override
+    public double getScore () {
+      double doclen = (double) Idx.getFieldLength (this.fieldId, this.docid);
+      double tf = (double) this.getTf ();
+
+      return this.oneMinusLambda * (tf + this.muCp) / (doclen + this.mu) + this.lambdaCp;
+    }
+
+    @Override
+    public double getDefaultScore (int docid) {
+      double doclen = (double) Idx.getFieldLength (this.fieldId, docid);
+
+      return this.defaultNumerator / (doclen + this.mu) + this.lambdaCp;
+    }
+
+    @Override
+    public final int getDefaultFieldId () {
+      return this.fieldId;
+    }
+  }
+
+  //  --------------- Boolean operators -----------------------------
+
+  /**
+   *  AND for the unranked Boolean retrieval model.
+   */
+  private static final class UnrankedBooleanAnd extends QryScorer {
+    UnrankedBooleanAnd (QryScorer[] args) {
+      super (args);
+    }
+
+    @Override
+    public boolean hasMatch () {
+      return this.hasMatchAll ();
+    }
+
+    @Override
+    public double getScore () {
+      return 1.0;
+    }
+  }
+
+  /**
+   *  AND for the ranked Boolean retrieval model:  the smallest score.
+   */
+  private static final class RankedBooleanAnd extends QryScorer {
+    RankedBooleanAnd (QryScorer[] args) {
+      super (args);
+    }
+
+    @Override
+    public boolean hasMatch () {
+      return this.hasMatchAll ();
+    }
+
+    @Override
+    public double getScore () {
+      double score = 0.0;
+
+      for (int i=0; i<this.args.length; i++) {
+        if (! this.argMatches (i))
+          break;
+
+        double argScore = this.args[i].getScore ();
+
+        if ((argScore < score) || (score == 0.0))
+          score = argScore;
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  OR for the unranked Boolean retrieval model.
+   */
+  private static final class UnrankedBooleanOr extends Disjunction {
+    UnrankedBooleanOr (QryScorer[] args) {
+      super (args);
+    }
+
+    @Override
+    public double getScore () {
+      return 1.0;
+    }
+  }
+
+  /**
+   *  OR for the ranked Boolean retrieval model:  the largest score.
+   */
+  private static final class RankedBooleanOr extends Disjunction {
+    RankedBooleanOr (QryScorer[] args) {
+      super (args);
+    }
+
+    @Override
+    public double getScore () {
+      double score = 0.0;
+
+      for (int i=0; i<this.numMatchingArgs; i++) {
+        double argScore = this.args[this.matchingArgs[i]].getScore ();
+
+        if (argScore > score)
+          score = argScore;
+      }
+
+      return score;
+    }
+  }
+
+  //  --------------- BM25 operators --------------------------------
+
+  /**
+   *  SUM for the BM25 retrieval model.
+   */
+  private static final class Bm25Sum extends Disjunction {
+    Bm25Sum (QryScorer[] args) {
+      super (args);
+    }
+
+    @Override
+    public double getScore () {
+      double score = 0.0;
+
+      for (int i=0; i<this.numMatchingArgs; i++)
+        score += this.args[this.matchingArgs[i]].getScore ();
+
+      return score;
+    }
+  }
+
+  //  --------------- Indri operators -------------------------------
+
+  /**
+   *  A scorer for the Indri retrieval model, which also gives default
+   *  scores to documents that it doesn't match.
+   */
+  private interface IndriBelief {
+
+    /**
+     *  Get the Indri default score of a document that the scorer
+     *  doesn't match.
+     *  @param docid An internal document id.
+     *  @return The default score.
+     */
+    double getDefaultScore (int docid);
+
+    /**
+     *  Get the field whose length determines the default score.
+     *  @return The field id, or MIXED_FIELDS if the default score
+     *  depends on the lengths of more than one field.
+     */
+    int getDefaultFieldId ();
+  }
+
+  /**
+   *  The base class of the Indri operators other than SCORE.
+   *  <p>
+   *  None of the SCORE operators under an operator match a document
+   *  that it doesn't match, so its default score is a function of the
+   *  lengths of their fields.  When they all have the same field, the
+   *  score is computed once for each field length and cached in the
+   *  operator's query plan, which every execution of the plan shares,
+   *  so the default scores of most documents cost a length lookup
+   *  instead of a walk over the subtree.
+   *  </p>
+   */
+  private abstract static class IndriOperator extends Disjunction
+    implements IndriBelief {
+
+    /**
+     *  The arguments, as Indri scorers.
+     */
+    protected final IndriBelief[] beliefs;
+
+    private final QryPlan plan;
+    private final int defaultFieldId;
+    private AtomicLongArray defaultScores = null;	// The plan's, once needed
+
+    protected IndriOperator (QryPlan p, QryScorer[] args) {
+      super (args);
+      this.plan = p;
+      this.beliefs = new IndriBelief[args.length];
+
+      int fieldId = MIXED_FIELDS;
+
+      for (int i=0; i<args.length; i++) {
+        this.beliefs[i] = (IndriBelief) args[i];
+
+        if (i == 0)
+          fieldId = this.beliefs[i].getDefaultFieldId ();
+        else if (this.beliefs[i].getDefaultFieldId () != fieldId)
+          fieldId = MIXED_FIELDS;
+      }
+
+      this.defaultFieldId = fieldId;
+    }
+
+    @Override
+    public final int getDefaultFieldId () {
+      return this.defaultFieldId;
+    }
+
+    /**
+     *  Returns true if the default scores of the operator are cached.
+     *  @return True if the default score depends on just one field.
+     */
+    protected final boolean isDefaultScoreCached () {
+      return (this.defaultFieldId != MIXED_FIELDS);
+    }
+
+    @Override
+    public final double getDefaultScore (int docid) {
+
+      if (this.defaultFieldId == MIXED_FIELDS)
+        return this.computeDefaultScore (docid);
+
+      if (this.defaultScores == null)
+        this.defaultScores = this.plan.getDefaultScores (this.defaultFieldId);
+
+      int doclen = Idx.getFieldLength (this.defaultFieldId, docid);
+
+      if (doclen >= this.defaultScores.length ())
+        return this.computeDefaultScore (docid);
+
+      long bits = this.defaultScores.get (doclen);
+
+      if (bits != 0L)
+        return Double.longBitsToDouble (bits);
+
+      double score = this.computeDefaultScore (docid);
+      this.defaultScores.set (doclen, Double.doubleToRawLongBits (score));
+      return score;
+    }
+
+    /**
+     *  Compute the default score of a document that the operator
+     *  doesn't match (see getDefaultScore).
+     *  @param docid An internal document id.
+     *  @return The default score.
+     */
+    protected abstract double computeDefaultScore (int docid);
+  }
+
+  /**
+   *  AND for the Indri retrieval model:  the geometric mean of the
+   *  arguments' scores.
+   */
+  private static final class IndriAnd extends IndriOperator {
+    private final double exp;
+
+    IndriAnd (QryPlan p, QryScorer[] args) {
+      super (p, args);
+      this.exp = 1.0 / (double) args.length;
+    }
+
+    @Override
+    public double getScore () {
+
+      //  If the default score is cached, start from it and correct it
+      //  for the arguments that match, which are usually few.  An
+      //  argument with a zero belief can't be corrected.  Each ratio is
+      //  raised to the exponent before it is applied, so that the
+      //  product of many large ratios can't overflow.
+
+      double defaultScore = this.isDefaultScoreCached () ?
+        this.getDefaultScore (this.docid) : 0.0;
+
+      if (defaultScore != 0.0) {
+        for (int i=0; i<this.numMatchingArgs; i++) {
+          int j = this.matchingArgs[i];
+          defaultScore *= Math.pow (this.args[j].getScore () /
+                                    this.beliefs[j].getDefaultScore (this.docid),
+                                    this.exp);
+        }
+
+        return defaultScore;
+      }
+
+      double score = 1.0;
+
+      for (int i=0; i<this.args.length; i++) {
+        if (this.argMatches (i))
+          score *= Math.pow (this.args[i].getScore (), this.exp);
+        else
+          score *= Math.pow (this.beliefs[i].getDefaultScore (this.docid), this.exp);
+      }
+
+      return score;
+    }
+
+    @Override
+    protected double computeDefaultScore (int docid) {
+      double score = 1.0;
+
+      for (int i=0; i<this.args.length; i++)
+        score *= Math.pow (this.beliefs[i].getDefaultScore (docid), this.exp);
+
+      return score;
+    }
+  }
+
+  /**
+   *  OR for the Indri retrieval model.
+   */
+  private static final class IndriOr extends IndriOperator {
+    IndriOr (QryPlan p, QryScorer[] args) {
+      super (p, args);
+    }
+
+    @Override
+    public double getScore () {
+      double score = 1.0;
+
+      for (int i=0; i<this.args.length; i++) {
+        if (this.argMatches (i))
+          score *= 1.0 - this.args[i].getScore ();
+        else
+          score *= 1.0 - this.beliefs[i].getDefaultScore (this.docid);
+      }
+
+      return 1.0 - score;
+    }
+
+    @Override
+    protected double computeDefaultScore (int docid) {
+      double score = 1.0;
+
+      for (int i=0; i<this.args.length; i++)
+        score *= 1.0 - this.beliefs[i].getDefaultScore (docid);
+
+      return 1.0 - score;
+    }
+  }
+
+  /**
+   *  WAND for the Indri retrieval model:  the weighted geometric mean
+   *  of the arguments' scores.
+   */
+  private static final class IndriWand extends IndriOperator {
+    private final double[] exps;
+
+    IndriWand (QryPlan p, QryScorer[] args, double[] exps) {
+      super (p, args);
+      this.exps = exps;
+    }
+
+    @Override
+    public double getScore () {
+
+      //  If the default score is cached, start from it and correct it
+      //  for the arguments that match, which are usually few.  An
+      //  argument with a zero belief can't be corrected.
+
+      double defaultScore = this.isDefaultScoreCached () ?
+        this.getDefaultScore (this.docid) : 0.0;
+
+      if (defaultScore != 0.0) {
+        for (int i=0; i<this.numMatchingArgs; i++) {
+          int j = this.matchingArgs[i];
+          defaultScore *= Math.pow (this.args[j].getScore () /
+                                    this.beliefs[j].getDefaultScore (this.docid),
+                                    this.exps[j]);
+        }
+
+        return defaultScore;
+      }
+
+      double score = 1.0;
+
+      for (int i=0; i<this.args.length; i++) {
+        if (this.argMatches (i))
+          score *= Math.pow (this.args[i].getScore (), this.exps[i]);
+        else
+          score *= Math.pow (this.beliefs[i].getDefaultScore (this.docid), this.exps[i]);
+      }
+
+      return score;
+    }
+
+    @Override
+    protected double computeDefaultScore (int docid) {
+      double score = 1.0;
+
+      for (int i=0; i<this.args.length; i++)
+        score *= Math.pow (this.beliefs[i].getDefaultScore (docid), this.exps[i]);
+
+      return score;
+    }
+  }
+
+  /**
+   *  WSUM for the Indri retrieval model:  the weighted mean of the
+   *  arguments' scores.
+   */
+  private static final class IndriWsum extends IndriOperator {
+    private final double[] weights;
+
+    IndriWsum (QryPlan p, QryScorer[] args, double[] weights) {
+      super (p, args);
+      this.weights = weights;
+    }
+
+    @Override
+    public double getScore () {
+      double score = 0.0;
+
+      for (int i=0; i<this.args.length; i++) {
+        if (this.argMatches (i))
+          score += this.weights[i] * this.args[i].getScore ();
+        else
+          score += this.weights[i] * this.beliefs[i].getDefaultScore (this.docid);
+      }
+
+      return score;
+    }
+
+    @Override
+    protected double computeDefaultScore (int docid) {
+      double score = 0.0;
+
+      for (int i=0; i<this.args.length; i++)
+        score += this.weights[i] * this.beliefs[i].getDefaultScore (docid);
+
+      return score;
+    }
+  }
+
+  //  --------------- Indri operators in the log domain -------------
+
+  /**
+   *  SCORE for the Indri retrieval model:  the log of the belief.
+   */
+  private static final class IndriLogScore extends IndriScore {
+    IndriLogScore (QryPlan s, RetrievalModelIndri r) {
+      super (s, r);
+    }
+
+    @Override
+    public double getScore () {
+      return Math.log (super.getScore ());
+    }
+
+    @Override
+    public double getDefaultScore (int docid) {
+      return Math.log (super.getDefaultScore (docid));
+    }
+  }
+
+  /**
+   *  AND for the Indri retrieval model:  the mean of the arguments' log
+   *  beliefs.
+   */
+  private static final class IndriLogAnd extends IndriOperator {
+    private final double exp;
+
+    IndriLogAnd (QryPlan p, QryScorer[] args) {
+      super (p, args);
+      this.exp = 1.0 / (double) args.length;
+    }
+
+    @Override
+    public double getScore () {
+      double score = 0.0;
+
+      //  If the default score is cached, start from it and correct it
+      //  for the arguments that match, which are usually few.  An
+      //  argument with a zero belief (log -Infinity) can't be corrected.
+
+      double defaultScore = this.isDefaultScoreCached () ?
+        this.getDefaultScore (this.docid) : Double.NEGATIVE_INFINITY;
+
+      if (defaultScore != Double.NEGATIVE_INFINITY) {
+        for (int i=0; i<this.numMatchingArgs; i++) {
+          int j = this.matchingArgs[i];
+          score += this.args[j].getScore () - this.beliefs[j].getDefaultScore (this.docid);
+        }
+
+        return defaultScore + score * this.exp;
+      }
+
+      for (int i=0; i<this.args.length; i++) {
+        if (this.argMatches (i))
+          score += this.args[i].getScore ();
+        else
+          score += this.beliefs[i].getDefaultScore (this.docid);
+      }
+
+      return score * this.exp;
+    }
+
+    @Override
+    protected double computeDefaultScore (int docid) {
+      double score = 0.0;
+
+      for (int i=0; i<this.args.length; i++)
+        score += this.beliefs[i].getDefaultScore (docid);
+
+      return score * this.exp;
+    }
+  }
+
+  /**
+   *  OR for the Indri retrieval model.  It doesn't factor into logs, so
+   *  the arguments' beliefs are converted back.
+   */
+  private static final class IndriLogOr extends IndriOperator {
+    IndriLogOr (QryPlan p, QryScorer[] args) {
+      super (p, args);
+    }
+
+    @Override
+    public double getScore () {
+      double score = 1.0;
+
+      for (int i=0; i<this.args.length; i++) {
+        if (this.argMatches (i))
+          score *= 1.0 - Math.exp (this.args[i].getScore ());
+        else
+          score *= 1.0 - Math.exp (this.beliefs[i].getDefaultScore (this.docid));
+      }
+
+      return Math.log (1.0 - score);
+    }
+
+    @Override
+    protected double computeDefaultScore (int docid) {
+      double score = 1.0;
+
+      for (int i=0; i<this.args.length; i++)
+        score *= 1.0 - Math.exp (this.beliefs[i].getDefaultScore (docid));
+
+      return Math.log (1.0 - score);
+    }
+  }
+
+  /**
+   *  WAND for the Indri retrieval model:  the weighted sum of the
+   *  arguments' log beliefs.
+   */
+  private static final class IndriLogWand extends IndriOperator {
+    private final double[] weights;
+
+    IndriLogWand (QryPlan p, QryScorer[] args, double[] weights) {
+      super (p, args);
+      this.weights = weights;
+    }
+
+    @Override
+    public double getScore () {
+      double score = 0.0;
+
+      //  If the default score is cached, start from it and correct it
+      //  for the arguments that match, which are usually few.  An
+      //  argument with a zero belief (log -Infinity) can't be corrected.
+
+      double defaultScore = this.isDefaultScoreCached () ?
+        this.getDefaultScore (this.docid) : Double.NEGATIVE_INFINITY;
+
+      if (defaultScore != Double.NEGATIVE_INFINITY) {
+        for (int i=0; i<this.numMatchingArgs; i++) {
+          int j = this.matchingArgs[i];
+          score += this.weights[j] *
+            (this.args[j].getScore () - this.beliefs[j].getDefaultScore (this.docid));
+        }
+
+        return defaultScore + score;
+      }
+
+      for (int i=0; i<this.args.length; i++) {
+        if (this.argMatches (i))
+          score += this.weights[i] * this.args[i].getScore ();
+        else
+          score += this.weights[i] * this.beliefs[i].getDefaultScore (this.docid);
+      }
+
+      return score;
+    }
+
+    @Override
+    protected double computeDefaultScore (int docid) {
+      double score = 0.0;
+
+      for (int i=0; i<this.args.length; i++)
+        score += this.weights[i] * this.beliefs[i].getDefaultScore (docid);
+
+      return score;
+    }
+  }
+
+  /**
+   *  WSUM for the Indri retrieval model.  It doesn't factor into logs,
+   *  so the arguments' beliefs are converted back.
+   */
+  private static final class IndriLogWsum extends IndriOperator {
+    private final double[] weights;
+
+    IndriLogWsum (QryPlan p, QryScorer[] args, double[] weights) {
+      super (p, args);
+      this.weights = weights;
+    }
+
+    @Override
+    public double getScore () {
+      double score = 0.0;
+
+      for (int i=0; i<this.args.length; i++) {
+        if (this.argMatches (i))
+          score += this.weights[i] * Math.exp (this.args[i].getScore ());
+        else
+          score += this.weights[i] * Math.exp (this.beliefs[i].getDefaultScore (this.docid));
+      }
+
+      return Math.log (score);
+    }
+
+    @Override
+    protected double computeDefaultScore (int docid) {
+      double score = 0.0;
+
+      for (int i=0; i<this.args.length; i++)
+        score += this.weights[i] * Math.exp (this.beliefs[i].getDefaultScore (docid));
+
+      return Math.log (score);
+    }
+  }
+
+  /**
+   *  The root of a query that is scored in the log domain, which
+   *  converts its argument's log belief back to a belief, so that
+   *  scores have the same scale as in the other engines.
+   */
+  private static final class IndriExp extends QryScorer {
+    IndriExp (QryScorer arg) {
+      super (new QryScorer[] { arg });
+    }
+
+    @Override
+    public boolean hasMatch () {
+      if (this.args[0].hasMatch ()) {
+        this.docid = this.args[0].docid;
+        return true;
+      }
+
+      return false;
+    }
+
+    @Override
+    public double getScore () {
+      return Math.exp (this.args[0].getScore ());
+    }
+  }
+}
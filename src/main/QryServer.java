@@ -0,0 +1,454 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ *  A search server that answers queries over HTTP on the loopback
+ *  interface.  The index, the caches and the compiled code of the JVM
+ *  stay warm between queries, so a query costs its evaluation instead
+ *  of a JVM start and an Idx.initialize.
+ *  <p>
+ *  A query is POSTed to /search as a JSON object with a "query" and,
+ *  optionally, a "qid" (default "0", also if it is null), e.g.,
+ *  {"qid": "10", "query": "#and(obama family tree)"}.  The response is
+ *  the ranking in the format of QryEval.printResults.  Errors are
+ *  returned as a JSON object with an "error".  Request bodies are
+ *  limited to MAX_REQUEST_BYTES.
+ *  </p><p>
+ *  Queries are evaluated by worker threads.  At most maxRequests
+ *  queries are evaluated or waiting for a worker at once; others are
+ *  refused with 503 (Service Unavailable), so a burst of requests
+ *  doesn't queue without bound.
+ *  </p>
+ */
+public class QryServer {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String CONTEXT = "/search";
+
+  /**
+   *  The largest request body that is read.  A query is a few hundred
+   *  bytes; larger requests are refused with 413 (Payload Too Large),
+   *  so that one request can't exhaust the heap that the workers share.
+   */
+  private static final int MAX_REQUEST_BYTES = 16 * 1024;
+
+  private final HttpServer server;
+  private final ExecutorService workers;
+  private final Semaphore admissions;
+  private final RetrievalModel model;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a server.  It doesn't accept requests until it is started.
+   *  @param port The port, on the loopback interface.
+   *  @param model The retrieval model.
+   *  @param numWorkers The number of worker threads.
+   *  @param maxRequests The number of requests that may be evaluated or
+   *  waiting for a worker at once.
+   *  @param virtualThreads True to evaluate each request on its own
+   *  virtual thread instead, if the JVM has them.
+   *  @throws IOException The port couldn't be opened.
+   */
+  public QryServer (int port, RetrievalModel model, int numWorkers,
+                    int maxRequests, boolean virtualThreads)
+    throws IOException {
+
+    if ((numWorkers < 1) || (maxRequests < 1)) {
+      throw new IllegalArgumentException
+        ("The server needs at least one worker and one request.");
+    }
+
+    this.model = model;
+    this.admissions = new Semaphore (maxRequests);
+    this.workers = virtualThreads ?
+      newVirtualThreadExecutor (numWorkers) :
+      Executors.newFixedThreadPool (numWorkers);
+
+    this.server = HttpServer.create (
+      new InetSocketAddress (InetAddress.getLoopbackAddress (), port), 0);
+
+    //  Requests are admitted by the thread that accepts them, which
+    //  hands them to the workers.
+
+    this.server.createContext (CONTEXT, new HttpHandler () {
+      public void handle (HttpExchange exchange) throws IOException {
+        admit (exchange);
+      }
+    });
+  }
+
+  /**
+   *  Create an executor that runs each task on its own virtual thread
+   *  (Java 21 and later), or a pool of platform threads if the JVM
+   *  doesn't have virtual threads.
+   *  @param numWorkers The number of threads of the pool.
+   *  @return The executor.
+   */
+  private static ExecutorService newVirtualThreadExecutor (int numWorkers) {
+    try {
+      Method m = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke (null);
+    } catch (ReflectiveOperationException ex) {
+      System.out.println ("Virtual threads aren't available; using " +
+                          numWorkers + " worker threads.");
+      return Executors.newFixedThreadPool (numWorkers);
+    }
+  }
+
+  /**
+   *  Start accepting requests.
+   */
+  public void start () {
+    this.server.start ();
+    System.out.println ("Listening on http://" +
+                        this.server.getAddress ().getHostString () + ":" +
+                        this.server.getAddress ().getPort () + CONTEXT);
+  }
+
+  /**
+   *  Stop accepting requests, and wait briefly for the requests that
+   *  are being evaluated.
+   */
+  public void stop () {
+    this.server.stop (1);
+    this.workers.shutdown ();
+  }
+
+  /**
+   *  Hand a request to a worker, or refuse it if too many requests are
+   *  being evaluated or waiting already.
+   *  @param exchange The request.
+   *  @throws IOException Error writing the response.
+   */
+  private void admit (final HttpExchange exchange) throws IOException {
+
+    if (! this.admissions.tryAcquire ()) {
+      refuse (exchange, "Too many requests");
+      return;
+    }
+
+    try {
+      this.workers.execute (new Runnable () {
+        public void run () {
+          try {
+            process (exchange);
+          } finally {
+            admissions.release ();
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      this.admissions.release ();
+      refuse (exchange, "The server is stopping");
+    }
+  }
+
+  /**
+   *  Refuse a request with 503 (Service Unavailable).
+   *  @param exchange The request.
+   *  @param message Why the request is refused.
+   *  @throws IOException Error writing the response.
+   */
+  private static void refuse (HttpExchange exchange, String message)
+    throws IOException {
+
+    try {
+      sendError (exchange, 503, message);
+    } finally {
+      exchange.close ();
+    }
+  }
+
+  /**
+   *  Evaluate a request, send its response and close it.  Queries are
+   *  not echoed to stdout, which would serialize the workers.
+   *  @param exchange The request.
+   */
+  private void process (HttpExchange exchange) {
+
+    try {
+      try {
+        if (! exchange.getRequestMethod ().equals ("POST")) {
+          exchange.getResponseHeaders ().set ("Allow", "POST");
+          sendError (exchange, 405, "Queries must be POSTed");
+          return;
+        }
+
+        String body = readFully (exchange.getRequestBody (), MAX_REQUEST_BYTES);
+
+        if (body == null) {
+          sendError (exchange, 413, "The request is larger than " +
+                     MAX_REQUEST_BYTES + " bytes");
+          return;
+        }
+
+        Map<String, String> request = parseJsonObject (body);
+        String qid = (request.get ("qid") != null) ? request.get ("qid") : "0";
+        String query = request.get ("query");
+
+        if ((query == null) || (query.trim ().length () == 0))
+          throw new IllegalArgumentException ("The request has no query.");
+
+        if (qid.matches (".*\\s.*"))
+          throw new IllegalArgumentException ("The qid can't contain spaces.");
+
+        ScoreList r = QryEval.processQuery (query, this.model, null);
+        String results = "";
+
+        if (r != null) {
+          r.sort ();
+          results = QryEval.formatResults (qid, r);
+        }
+
+        send (exchange, 200, "text/plain; charset=UTF-8", results);
+      } catch (IllegalArgumentException ex) {
+        sendError (exchange, 400, ex.getMessage ());
+      } catch (IOException ex) {
+        sendError (exchange, 500, ex.toString ());
+      } catch (RuntimeException ex) {
+        sendError (exchange, 500, ex.toString ());
+      }
+    } catch (IOException ex) {
+      //  The client went away.
+    } finally {
+      exchange.close ();
+    }
+  }
+
+  /**
+   *  Send an error as a JSON object.  The caller closes the exchange.
+   */
+  private static void sendError (HttpExchange exchange, int status,
+                                 String message)
+    throws IOException {
+
+    send (exchange, status, "application/json; charset=UTF-8",
+          "{\"error\": " + toJsonString (String.valueOf (message)) + "}\n");
+  }
+
+  /**
+   *  Send a response.
+   */
+  private static void send (HttpExchange exchange, int status,
+                            String contentType, String body)
+    throws IOException {
+
+    byte[] bytes = body.getBytes ("UTF-8");
+
+    exchange.getResponseHeaders ().set ("Content-Type", contentType);
+    exchange.sendResponseHeaders (status, (bytes.length > 0) ? bytes.length : -1);
+
+    if (bytes.length > 0) {
+      OutputStream out = exchange.getResponseBody ();
+      out.write (bytes);
+      out.close ();
+    }
+  }
+
+  /**
+   *  Read a request body as UTF-8, unless it is too large.  The rest of
+   *  a body that is too large isn't read.
+   *  @return The body, or null if it is longer than maxBytes.
+   */
+  private static String readFully (InputStream in, int maxBytes)
+    throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+    byte[] buffer = new byte[4096];
+    int n;
+
+    while ((n = in.read (buffer)) > 0) {
+      if (bytes.size () + n > maxBytes)
+        return null;
+
+      bytes.write (buffer, 0, n);
+    }
+
+    return bytes.toString ("UTF-8");
+  }
+
+  /**
+   *  Parse a JSON object whose values are strings, numbers, booleans or
+   *  null; nested objects and arrays aren't needed by requests.
+   *  @param json The JSON text.
+   *  @return The values by name.  Values other than strings are kept
+   *  as they are written, and null is null.
+   *  @throws IllegalArgumentException The text isn't such an object.
+   */
+  static Map<String, String> parseJsonObject (String json) {
+    JsonReader in = new JsonReader (json);
+    Map<String, String> values = new HashMap<String, String> ();
+
+    in.expect ('{');
+
+    if (! in.skip ('}')) {
+      do {
+        String name = in.readString ();
+        in.expect (':');
+        values.put (name, in.readValue ());
+      } while (in.skip (','));
+
+      in.expect ('}');
+    }
+
+    if (! in.atEnd ())
+      throw new IllegalArgumentException ("Unexpected text after the JSON object.");
+
+    return values;
+  }
+
+  /**
+   *  Quote a string as a JSON string.
+   *  @param s The string.
+   *  @return The JSON string.
+   */
+  static String toJsonString (String s) {
+    StringBuilder sb = new StringBuilder ("\"");
+
+    for (int i = 0; i < s.length (); i++) {
+      char c = s.charAt (i);
+
+      if ((c == '"') || (c == '\\'))
+        sb.append ('\\').append (c);
+      else if (c == '\n')
+        sb.append ("\\n");
+      else if (c == '\r')
+        sb.append ("\\r");
+      else if (c == '\t')
+        sb.append ("\\t");
+      else if (c < 0x20)
+        sb.append (String.format ("\\u%04x", (int) c));
+      else
+        sb.append (c);
+    }
+
+    return sb.append ('"').toString ();
+  }
+
+  /**
+   *  A reader of the tokens of a JSON object (see parseJsonObject).
+   */
+  private static class JsonReader {
+    private final String json;
+    private int pos = 0;
+
+    private JsonReader (String json) {
+      this.json = json;
+    }
+
+    /**
+     *  Skip whitespace; return true if the text is exhausted.
+     */
+    private boolean atEnd () {
+      while ((this.pos < this.json.length ()) &&
+             Character.isWhitespace (this.json.charAt (this.pos)))
+        this.pos++;
+
+      return this.pos >= this.json.length ();
+    }
+
+    /**
+     *  Skip a character if it is next; return true if it was.
+     */
+    private boolean skip (char c) {
+      if (! this.atEnd () && (this.json.charAt (this.pos) == c)) {
+        this.pos++;
+        return true;
+      }
+
+      return false;
+    }
+
+    private void expect (char c) {
+      if (! this.skip (c))
+        throw new IllegalArgumentException
+          ("Syntax error:  Expected '" + c + "' at offset " + this.pos +
+           " of the JSON request.");
+    }
+
+    private String readString () {
+      this.expect ('"');
+
+      StringBuilder sb = new StringBuilder ();
+
+      while (this.pos < this.json.length ()) {
+        char c = this.json.charAt (this.pos++);
+
+        if (c == '"')
+          return sb.toString ();
+
+        if (c != '\\') {
+          sb.append (c);
+          continue;
+        }
+
+        if (this.pos >= this.json.length ())
+          break;
+
+        c = this.json.charAt (this.pos++);
+
+        if (c == 'b')
+          sb.append ('\b');
+        else if (c == 'f')
+          sb.append ('\f');
+        else if (c == 'n')
+          sb.append ('\n');
+        else if (c == 'r')
+          sb.append ('\r');
+        else if (c == 't')
+          sb.append ('\t');
+        else if (c == 'u') {
+          try {
+            sb.append ((char) Integer.parseInt
+                       (this.json.substring (this.pos, this.pos + 4), 16));
+          } catch (RuntimeException ex) {
+            throw new IllegalArgumentException
+              ("Syntax error:  Bad \\u escape in the JSON request.");
+          }
+
+          this.pos += 4;
+        } else
+          sb.append (c);			// \" \\ \/
+      }
+
+      throw new IllegalArgumentException
+        ("Syntax error:  Unterminated string in the JSON request.");
+    }
+
+    /**
+     *  Read a string, number, boolean or null.
+     */
+    private String readValue () {
+      if (this.atEnd ())
+        throw new IllegalArgumentException
+          ("Syntax error:  Missing value in the JSON request.");
+
+      if (this.json.charAt (this.pos) == '"')
+        return this.readString ();
+
+      int start = this.pos;
+
+      while ((this.pos < this.json.length ()) &&
+             ",}".indexOf (this.json.charAt (this.pos)) < 0)
+        this.pos++;
+
+      String value = this.json.substring (start, this.pos).trim ();
+
+      if (! value.matches ("-?\\d+(\\.\\d+)?([eE][-+]?\\d+)?|true|false|null"))
+        throw new IllegalArgumentException
+          ("Syntax error:  Bad value '" + value + "' in the JSON request.");
+
+      return value.equals ("null") ? null : value;
+    }
+  }
+}
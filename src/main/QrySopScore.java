@@ -13,9 +13,20 @@ public class QrySopScore extends QrySop {
 	 * Store basic corpus statistics in order to reduce IO operations.
 	 */
 	String field = null;
+	int fieldId = -1;
 	long corpuslen = 0;
 	long fieldDocs = 0;
 	long N = 0;
+	double avg_doclen = 0;
+	
+	/*
+	 * Per-term weights that don't depend on the document, computed once
+	 * in initialize:  the BM25 idf and user weight, and the collection
+	 * probability that Indri smooths with.
+	 */
+	double idf = 0;
+	double user_weight = 0;
+	double cp = 0;
 	
   /**
    *  Document-independent values that should be determined just once.
@@ -80,7 +91,7 @@ public class QrySopScore extends QrySop {
    */
   public double getScoreRankedBoolean (RetrievalModel r) throws IOException {
 	  QryIop q = (QryIop) this.args.get(0);
-	  return (double) q.docIteratorGetMatchPosting().tf;
+	  return (double) q.docIteratorGetMatchTf();
   }
   
 	/**
@@ -95,32 +106,96 @@ public class QrySopScore extends QrySop {
 		} else {
 			int docid = this.docIteratorGetMatchCache();
 			QryIop q = (QryIop) this.args.get(0);
-			String field = q.getField();
-			
 			
 			//model parameters
 			double k_1 = ((RetrievalModelBM25)r).getK_1();
-			double k_3 = ((RetrievalModelBM25)r).getK_3();
 			double b = ((RetrievalModelBM25)r).getB();
 			
-			//corpus statistics		
-			double df = (double) q.getDf();
-			double tf = (double) q.docIteratorGetMatchPosting().tf;
-			double doclen = (double) Idx.getFieldLength(field, docid);
-			double avg_doclen = ((double) corpuslen) / ((double) fieldDocs);
-			double qtf = (double) q.getQtf();
+			//document statistics
+			double tf = (double) q.docIteratorGetMatchTf();
+			double doclen = (double) Idx.getFieldLength(fieldId, docid);
 					
-			//idf
-			double idf = Math.max(0, Math.log(((double)N - df + 0.5) / (df + 0.5)));
 			//tf weight
 			double tf_weight = tf / (tf + k_1*(1 - b + (b * doclen / avg_doclen)));
-			//user weight
-			double user_weight = (k_3 + 1) * qtf / (k_3 + qtf);
 			
 			return idf * tf_weight * user_weight;
 		}
 	}
 
+	/**
+	 *  Get an upper bound on the score of any document that matches
+	 *  this operator.  Dynamic pruning uses it to skip documents that
+	 *  can't enter the top k.
+	 *  @param r The retrieval model that determines how scores are calculated.
+	 *  @return The upper bound, or +Infinity if there is no useful bound.
+	 */
+	public double getMaxScore (RetrievalModel r) {
+		QryIop q = (QryIop) this.args.get(0);
+		return getMaxScore (r, q.getMaxTf(), 0);
+	}
+
+	/**
+	 *  Get an upper bound on the score of a set of matching documents,
+	 *  e.g., a block of postings.  For BM25 and Indri the score grows
+	 *  with tf and shrinks with doclen, and a document can't be shorter
+	 *  than its tf, so the bound is the score at tf = maxTf and
+	 *  doclen = max (minDoclen, maxTf).
+	 *  @param r The retrieval model that determines how scores are calculated.
+	 *  @param maxTf The largest tf of the documents.
+	 *  @param minDoclen The smallest field length of the documents.
+	 *  @return The upper bound, or +Infinity if there is no useful bound.
+	 */
+	public double getMaxScore (RetrievalModel r, int maxTf, int minDoclen) {
+		double tf = (double) maxTf;
+		double doclen = (double) Math.max (minDoclen, maxTf);
+		double bound = Double.POSITIVE_INFINITY;
+		
+		if (maxTf == 0) {
+			return 0.0;
+		}
+		
+		if (r instanceof RetrievalModelBM25) {
+			
+			//model parameters
+			double k_1 = ((RetrievalModelBM25)r).getK_1();
+			double k_3 = ((RetrievalModelBM25)r).getK_3();
+			double b = ((RetrievalModelBM25)r).getB();
+			
+			if (k_1 < 0 || k_3 < 0 || b < 0 || b > 1) {
+				return Double.POSITIVE_INFINITY;
+			}
+			
+			double tf_weight = tf / (tf + k_1*(1 - b + (b * doclen / avg_doclen)));
+			bound = idf * tf_weight * user_weight;
+		}
+		else if (r instanceof RetrievalModelIndri) {
+			double mu = ((RetrievalModelIndri)r).getMu();
+			double lambda = ((RetrievalModelIndri)r).getLambda();
+			
+			if (mu < 0 || lambda < 0 || lambda > 1) {
+				return Double.POSITIVE_INFINITY;
+			}
+			
+			bound = (1 - lambda) * (tf + mu * cp) / (doclen + mu) + lambda * cp;
+		}
+		
+		return Double.isNaN(bound) ? Double.POSITIVE_INFINITY : bound;
+	}
+	
+	/**
+	 *  Get an upper bound on the Indri default score of any document.
+	 *  The default score shrinks with doclen, so the bound is the
+	 *  score at doclen = 0, which is the collection probability.
+	 *  @param r The retrieval model that determines how scores are calculated.
+	 *  @return The upper bound, or +Infinity if there is no useful bound.
+	 */
+	public double getMaxDefaultScore (RetrievalModel r) {
+		if (! (r instanceof RetrievalModelIndri)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return cp;
+	}
+
 	/**
 	 *  getScore for the Indri retrieval model.
 	 *  @param r The retrieval model that determines how scores are calculated.
@@ -164,10 +239,9 @@ public class QrySopScore extends QrySop {
 		double lambda = ((RetrievalModelIndri)r).getLambda();
 			
 		//corpus statistics
-		double doclen = (double) Idx.getFieldLength(field, docid);
-		double cp = (double) q.getCtf() / (double) corpuslen ;
+		double doclen = (double) Idx.getFieldLength(fieldId, docid);
 		double tf = (docIteratorHasMatch(r) && docid == docIteratorGetMatchCache()) ?
-				q.docIteratorGetMatchPosting().tf : 0.0;
+				q.docIteratorGetMatchTf() : 0.0;
 		
 		//calculation
 		return (1 - lambda) * (tf + mu * cp) / (doclen + mu) + lambda * cp;
@@ -185,9 +259,23 @@ public class QrySopScore extends QrySop {
     QryIop q = (QryIop) this.args.get (0);
     q.initialize (r);
     field = q.getField();
-    corpuslen = Idx.getSumOfFieldLengths(field);
-    N = Idx.getNumDocs();
-    fieldDocs = Idx.getDocCount (field);
+    fieldId = Idx.getFieldId(field);
+
+    CorpusStatistics stats = Idx.getCorpusStatistics();
+    corpuslen = stats.getSumOfFieldLengths(field);
+    N = stats.getNumDocs();
+    fieldDocs = stats.getDocCount(field);
+    avg_doclen = stats.getAvgFieldLength(field);
+
+    double df = (double) q.getDf();
+    idf = Math.max(0, Math.log(((double)N - df + 0.5) / (df + 0.5)));
+    cp = (double) q.getCtf() / (double) corpuslen;
+
+    if (r instanceof RetrievalModelBM25) {
+      double k_3 = ((RetrievalModelBM25)r).getK_3();
+      double qtf = (double) q.getQtf();
+      user_weight = (k_3 + 1) * qtf / (k_3 + qtf);
+    }
   }
 
 }
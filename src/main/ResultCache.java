@@ -0,0 +1,267 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A process-wide cache of query results.  Query logs repeat popular
+ *  queries, so a query that was evaluated before is answered from
+ *  memory instead of being initialized and evaluated again.
+ *  <p>
+ *  Results are keyed by the retrieval model and its parameters and by
+ *  the canonical form of the parsed and cleaned up query (see getKey),
+ *  so queries that were typed differently but parse to the same query
+ *  share one entry.  An entry holds the top-ranked docids and scores
+ *  of a query, as processQuery returns them.
+ *  </p><p>
+ *  The cache has a budget in bytes; when it is exceeded, the least
+ *  recently used results are evicted.  Results may also expire after a
+ *  time to live.  The cache must be cleared when the index is reopened
+ *  (see Idx.initialize); results that were being computed at the time
+ *  aren't cached.  The cache is disabled until its budget is set.  All
+ *  methods are thread-safe.
+ *  </p>
+ */
+public class ResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The results of processQuery.
+   */
+  public static final ResultCache QUERIES = new ResultCache ();
+
+  /**
+   *  Estimated bytes of an entry and its key, apart from the key's
+   *  characters and the results.
+   */
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+  /**
+   *  The results of one query.
+   */
+  private static class Entry {
+    private final int[] docids;
+    private final double[] scores;
+    private final long expires;		// System.nanoTime, or Long.MAX_VALUE
+    private final long sizeInBytes;
+
+    private Entry (String key, ScoreList r, long expires) {
+      this.docids = new int[r.size ()];
+      this.scores = new double[r.size ()];
+      this.expires = expires;
+      this.sizeInBytes = ENTRY_OVERHEAD_BYTES + 2L * key.length () +
+        12L * this.docids.length;
+
+      for (int i=0; i<this.docids.length; i++) {
+        this.docids[i] = r.getDocid (i);
+        this.scores[i] = r.getDocidScore (i);
+      }
+    }
+  }
+
+  /**
+   *  The cached results, in least recently used order.
+   */
+  private final LinkedHashMap<String, Entry> results =
+    new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+  private long capacity = 0;	// Budget in bytes; 0 disables the cache
+  private long size = 0;	// Bytes used by the cached results
+  private long ttl = 0;		// Time to live in nanoseconds; 0 is forever
+  private long generation = 0;	// Incremented when the cache is cleared
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long expirations = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the cache key of a query:  the retrieval model and its
+   *  parameters, and the canonical form of the query.  The canonical
+   *  form is the query's toString with the weights of weighted
+   *  arguments and the qtf of repeated BM25 terms, which change the
+   *  scores but aren't displayed, and with QryIop.getCanonicalForm for
+   *  inverted list operators.
+   *  @param q The parsed and cleaned up query.
+   *  @param r The retrieval model.
+   *  @return The cache key.
+   */
+  public static String getKey (Qry q, RetrievalModel r) {
+    StringBuilder key = new StringBuilder (r.toString ()).append (' ');
+    appendCanonicalForm (q, key);
+    return key.toString ();
+  }
+
+  /**
+   *  Append the canonical form of a query operator to a key.
+   */
+  private static void appendCanonicalForm (Qry q, StringBuilder key) {
+
+    if (q instanceof QryIop) {
+      key.append (((QryIop) q).getCanonicalForm ());
+      return;
+    }
+
+    if ((q instanceof QrySop) && ! Double.isNaN (((QrySop) q).getWeight ()))
+      key.append (((QrySop) q).getWeight ()).append (' ');
+
+    if (q.getQtf () != 1)
+      key.append ("qtf=").append (q.getQtf ()).append (' ');
+
+    key.append (q.getDisplayName ().toLowerCase ()).append ("(");
+
+    for (Qry q_i : q.args) {
+      key.append (' ');
+      appendCanonicalForm (q_i, key);
+    }
+
+    key.append (" )");
+  }
+
+  /**
+   *  Get the results of a query from the cache.
+   *  @param key The cache key of the query (see getKey).
+   *  @return A new score list, best first, or null if the results
+   *  aren't cached.
+   */
+  public synchronized ScoreList get (String key) {
+
+    if (this.capacity <= 0) {
+      return null;
+    }
+
+    Entry entry = this.results.get (key);
+
+    if ((entry != null) && (entry.expires != Long.MAX_VALUE) &&
+        (System.nanoTime () - entry.expires > 0)) {
+      this.results.remove (key);
+      this.size -= entry.sizeInBytes;
+      this.expirations ++;
+      entry = null;
+    }
+
+    if (entry == null) {
+      this.misses ++;
+      return null;
+    }
+
+    this.hits ++;
+
+    ScoreList r = new ScoreList ();
+
+    for (int i=0; i<entry.docids.length; i++)
+      r.add (entry.docids[i], entry.scores[i]);
+
+    return r;
+  }
+
+  /**
+   *  Get the generation of the cache, which changes when it is
+   *  cleared.  Get it before a query is evaluated, and pass it to put.
+   *  @return The generation.
+   */
+  public synchronized long getGeneration () {
+    return this.generation;
+  }
+
+  /**
+   *  Add the results of a query to the cache.  The score list is
+   *  copied, so the caller may modify it later.
+   *  @param key The cache key of the query (see getKey).
+   *  @param r The results, best first.
+   *  @param generation The generation of the cache when the query was
+   *  evaluated.  If the cache was cleared since, the results aren't
+   *  cached, because they may be for an older index.
+   */
+  public synchronized void put (String key, ScoreList r, long generation) {
+
+    if ((this.capacity <= 0) || (generation != this.generation)) {
+      return;
+    }
+
+    long expires = (this.ttl > 0) ? System.nanoTime () + this.ttl : Long.MAX_VALUE;
+    Entry entry = new Entry (key, r, expires);
+
+    if (entry.sizeInBytes > this.capacity) {		// Too big.
+      return;
+    }
+
+    Entry old = this.results.put (key, entry);
+
+    if (old != null) {
+      this.size -= old.sizeInBytes;
+    }
+
+    this.size += entry.sizeInBytes;
+    this.evict ();
+  }
+
+  /**
+   *  Evict least recently used results until the cache is within its
+   *  budget.  The caller must hold the lock.
+   */
+  private void evict () {
+
+    Iterator<Map.Entry<String, Entry>> entries =
+      this.results.entrySet ().iterator ();
+
+    while ((this.size > this.capacity) && entries.hasNext ()) {
+      Entry entry = entries.next ().getValue ();
+      this.size -= entry.sizeInBytes;
+      entries.remove ();
+      this.evictions ++;
+    }
+  }
+
+  /**
+   *  Remove every result from the cache, for example after the index
+   *  is reopened.  The statistics are not reset.
+   */
+  public synchronized void clear () {
+    this.results.clear ();
+    this.size = 0;
+    this.generation ++;
+  }
+
+  /**
+   *  Get a summary of the cache statistics.  This is handy for tuning.
+   *  @return A string that reports hits, misses, evictions and size.
+   */
+  public synchronized String getStatistics () {
+    long requests = this.hits + this.misses;
+    return "hits: " + this.hits + ", misses: " + this.misses +
+      ", hit rate: " + ((requests == 0) ? 0.0 : (double) this.hits / requests) +
+      ", evictions: " + this.evictions + ", expirations: " + this.expirations +
+      ", queries: " + this.results.size () +
+      ", size: " + (this.size / (1024L * 1024L)) + " MB";
+  }
+
+  /**
+   *  Returns true if the cache has a budget.
+   *  @return True if results may be cached, otherwise false.
+   */
+  public synchronized boolean isEnabled () {
+    return (this.capacity > 0);
+  }
+
+  /**
+   *  Set the cache budget.  Results are evicted if the cache is larger
+   *  than the new budget.  A budget of 0 disables the cache.
+   *  @param bytes The maximum number of bytes of results to cache.
+   */
+  public synchronized void setCapacity (long bytes) {
+    this.capacity = bytes;
+    this.evict ();
+  }
+
+  /**
+   *  Set the time to live of results that are cached from now on.
+   *  @param millis The time to live in milliseconds, or 0 if results
+   *  don't expire.
+   */
+  public synchronized void setTimeToLive (long millis) {
+    this.ttl = millis * 1000000L;
+  }
+}
@@ -16,4 +16,15 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Get a string that identifies the retrieval model and its
+   *  parameters, e.g., to tell apart results that were cached for
+   *  different models.  Models with parameters override it.
+   *  @return The name of the retrieval model.
+   */
+  @Override
+  public String toString () {
+    return this.getClass ().getSimpleName ();
+  }
+
 }
@@ -35,4 +35,9 @@ public class RetrievalModelBM25 extends RetrievalModel {
 	public double getB(){
 		return b;
 	}
+	
+	@Override
+	public String toString(){
+		return "BM25(k_1=" + k_1 + ", b=" + b + ", k_3=" + k_3 + ")";
+	}
 }
@@ -12,10 +12,18 @@ public class RetrievalModelIndri extends RetrievalModel {
 	//params for Indri model
 	private double mu;
 	private double lambda;
+	
+	//combine beliefs as sums of logs instead of products of powers
+	private boolean logDomain;
 
 	public RetrievalModelIndri(double mu, double lambda){
+	  this(mu, lambda, false);
+	}
+
+	public RetrievalModelIndri(double mu, double lambda, boolean logDomain){
 	  this.mu = mu;
 	  this.lambda = lambda;
+	  this.logDomain = logDomain;
 	}
 	
 	public String defaultQrySopName () {
@@ -29,4 +37,13 @@ public class RetrievalModelIndri extends RetrievalModel {
 	public double getLambda(){
 		return lambda;
 	}
+	
+	public boolean isLogDomain(){
+		return logDomain;
+	}
+	
+	@Override
+	public String toString(){
+		return "Indri(mu=" + mu + ", lambda=" + lambda + ", logDomain=" + logDomain + ")";
+	}
 }
@@ -11,23 +11,24 @@ import java.util.*;
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  Most entries are never printed, so the external id is
+  //  looked up only when it is needed (see getExternalId).
 
   private class ScoreListEntry {
     private int docid;
-    private String externalId;
+    private String externalId = null;
     private double score;
 
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
+    }
 
-      try {
-    	  this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-    	  ex.printStackTrace();
-      }
+    private String getExternalId() throws IOException {
+      if (this.externalId == null)
+        this.externalId = Idx.getExternalDocid (this.docid);
+
+      return this.externalId;
     }
 
 	private ScoreListEntry(String externalId, double score) {
@@ -74,6 +75,16 @@ public class ScoreList {
     return this.scores.get(n).docid;
   }
 
+  /**
+   *  Get the external docid of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid(int n) throws IOException {
+    return this.scores.get(n).getExternalId();
+  }
+
   /**
    *  Get the score of the n'th entry.
    *  @param n The index of the requested document score.
@@ -102,7 +113,7 @@ public class ScoreList {
 
   /*
    *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
+   *  external docid.  External ids are only looked up for ties.
    */
   public class ScoreListComparator implements Comparator<ScoreListEntry> {
 
@@ -112,7 +123,12 @@ public class ScoreList {
     	  return -1;
       else if (s1.score < s2.score)
     	  return 1;
-      else return s1.externalId.compareTo(s2.externalId);
+
+      try {
+        return s1.getExternalId().compareTo(s2.getExternalId());
+      } catch (IOException ex) {
+        throw new IllegalStateException ("Error reading an external docid", ex);
+      }
     }
   }
 
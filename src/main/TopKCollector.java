@@ -0,0 +1,256 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  Collects the k best documents of a query as they are scored, so
+ *  that a query that matches millions of documents doesn't need a
+ *  ScoreList entry for each of them.  Documents are ranked as
+ *  ScoreList.sort ranks them:  by score, then by external document id.
+ *  <p>
+ *  The collector is a binary min-heap in parallel primitive arrays
+ *  whose root is the worst of the k documents.  External ids are only
+ *  needed to break ties, so they are looked up the first time that a
+ *  document ties with another one, and remembered.
+ *  </p><p>
+ *  getThreshold is the score that a document must reach to be
+ *  collected, which dynamic pruning uses to skip documents.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int k;
+  private int size = 0;
+
+  /**
+   *  The heap:  entry i's children are entries 2i+1 and 2i+2, and no
+   *  entry ranks below its parent.
+   */
+  private final int[] docids;
+  private final double[] scores;
+
+  /**
+   *  The external ids of the entries, or null if not looked up yet.
+   */
+  private final String[] externalIds;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param k The number of documents to collect (&gt;= 1).
+   */
+  public TopKCollector (int k) {
+
+    if (k < 1) {
+      throw new IllegalArgumentException ("k must be at least 1, not " + k);
+    }
+
+    this.k = k;
+    this.docids = new int[k];
+    this.scores = new double[k];
+    this.externalIds = new String[k];
+  }
+
+  /**
+   *  Offer a document to the collector.  It is collected if there are
+   *  fewer than k documents or if it ranks above the worst of them,
+   *  which is then dropped.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @return True if the document was collected, otherwise false.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public boolean add (int docid, double score) throws IOException {
+
+    if (this.size < this.k) {
+      int i = this.size++;
+      this.set (i, docid, score, null);
+      this.siftUp (i);
+      return true;
+    }
+
+    //  Compare with the root (the worst document collected).
+
+    if (score < this.scores[0]) {
+      return false;
+    }
+
+    String externalId = null;
+
+    if (score == this.scores[0]) {
+      externalId = Idx.getExternalDocid (docid);
+
+      if (externalId.compareTo (this.getExternalId (0)) >= 0) {
+        return false;
+      }
+    }
+
+    this.set (0, docid, score, externalId);
+    this.siftDown (0);
+    return true;
+  }
+
+  /**
+   *  Offer the documents of another collector, e.g., one that collected
+   *  a different range of documents, to the collector.
+   *  @param other The other collector.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void addAll (TopKCollector other) throws IOException {
+    for (int i=0; i<other.size; i++)
+      this.add (other.docids[i], other.scores[i]);
+  }
+
+  /**
+   *  Get the external id of entry i, looking it up if necessary.
+   *  @param i The index of the entry.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private String getExternalId (int i) throws IOException {
+
+    if (this.externalIds[i] == null) {
+      this.externalIds[i] = Idx.getExternalDocid (this.docids[i]);
+    }
+
+    return this.externalIds[i];
+  }
+
+  /**
+   *  Get the number of documents that must be collected.
+   *  @return k.
+   */
+  public int getK () {
+    return this.k;
+  }
+
+  /**
+   *  Get the smallest score that a document needs to be collected.  A
+   *  document that ties with it may still be collected, depending on
+   *  its external id.
+   *  @return The score of the k'th best document, or -Infinity if
+   *  fewer than k documents have been collected.
+   */
+  public double getThreshold () {
+    return (this.size < this.k) ? Double.NEGATIVE_INFINITY : this.scores[0];
+  }
+
+  /**
+   *  Returns true if entry i ranks below entry j.
+   *  @param i The index of an entry.
+   *  @param j The index of another entry.
+   *  @return True if entry i is the worse of the two.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private boolean isWorse (int i, int j) throws IOException {
+
+    if (this.scores[i] != this.scores[j]) {
+      return (this.scores[i] < this.scores[j]);
+    }
+
+    return (this.getExternalId (i).compareTo (this.getExternalId (j)) > 0);
+  }
+
+  /**
+   *  Store a document in entry i.
+   */
+  private void set (int i, int docid, double score, String externalId) {
+    this.docids[i] = docid;
+    this.scores[i] = score;
+    this.externalIds[i] = externalId;
+  }
+
+  /**
+   *  Move entry i up until its parent doesn't rank below it.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void siftUp (int i) throws IOException {
+
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+
+      if (! this.isWorse (i, parent))
+        break;
+
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  /**
+   *  Move entry i down until neither of its children ranks below it.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void siftDown (int i) throws IOException {
+
+    while (true) {
+      int worst = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+
+      if ((left < this.size) && this.isWorse (left, worst))
+        worst = left;
+
+      if ((right < this.size) && this.isWorse (right, worst))
+        worst = right;
+
+      if (worst == i)
+        break;
+
+      this.swap (i, worst);
+      i = worst;
+    }
+  }
+
+  /**
+   *  Get the number of documents collected.
+   *  @return The number of documents, at most k.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Swap entries i and j.
+   */
+  private void swap (int i, int j) {
+    int docid = this.docids[i];
+    double score = this.scores[i];
+    String externalId = this.externalIds[i];
+
+    this.set (i, this.docids[j], this.scores[j], this.externalIds[j]);
+    this.set (j, docid, score, externalId);
+  }
+
+  /**
+   *  Get the collected documents as a score list, best first.  The
+   *  collector is empty afterwards.
+   *  @return The sorted score list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList toScoreList () throws IOException {
+
+    //  Remove the worst document until the heap is empty; the removed
+    //  documents are stored from the back of the arrays to the front.
+
+    int n = this.size;
+
+    while (this.size > 1) {
+      this.swap (0, --this.size);
+      this.siftDown (0);
+    }
+
+    this.size = 0;
+
+    ScoreList result = new ScoreList ();
+
+    for (int i=0; i<n; i++)
+      result.add (this.docids[i], this.scores[i]);
+
+    return result;
+  }
+}